@@ -0,0 +1,220 @@
+package com.epubtopdf.benchmarks;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the EPUB files the benchmarks read from the unpacked sample book in the repository's
+ * input directory. A scale above one repeats every spine chapter that many times under new
+ * names, which gives larger books with the same structure, markup and resources, and needs
+ * nothing but the local file system.
+ */
+public final class BookFixtures {
+    /** System property naming the unpacked EPUB to build fixtures from */
+    public static final String SOURCE_PROPERTY = "epub.fixture.dir";
+    
+    private static final String SAMPLE_BOOK = "input/NL27_Grade_K_Unit_3";
+    private static final String CONTAINER = "META-INF/container.xml";
+    private static final String OPF_NAMESPACE = "http://www.idpf.org/2007/opf";
+    private static final String CONTAINER_NAMESPACE = "urn:oasis:names:tc:opendocument:xmlns:container";
+    
+    private BookFixtures() {
+    }
+    
+    /**
+     * Returns the unpacked EPUB to build fixtures from: the directory named by the
+     * {@value #SOURCE_PROPERTY} system property, or the sample book found from the working directory
+     */
+    public static Path sourceDirectory() {
+        String configured = System.getProperty(SOURCE_PROPERTY);
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        for (Path dir = Paths.get("").toAbsolutePath(); dir != null; dir = dir.getParent()) {
+            Path candidate = dir.resolve(SAMPLE_BOOK);
+            if (Files.isRegularFile(candidate.resolve(CONTAINER))) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("Could not find " + SAMPLE_BOOK + " above the working directory; set -D"
+            + SOURCE_PROPERTY + " to an unpacked EPUB");
+    }
+    
+    /**
+     * Reads every file of an unpacked EPUB, keyed by its path inside the archive
+     */
+    public static Map<String, byte[]> readEntries(Path sourceDir) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.walk(sourceDir)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted(Comparator.comparing(Path::toString)).collect(Collectors.toList())) {
+                entries.put(sourceDir.relativize(file).toString().replace('\\', '/'), Files.readAllBytes(file));
+            }
+        }
+        return entries;
+    }
+    
+    /**
+     * Returns the path of the package document inside the archive
+     */
+    public static String opfPath(Map<String, byte[]> entries) throws IOException {
+        byte[] container = entries.get(CONTAINER);
+        if (container == null) {
+            throw new IOException("Fixture has no " + CONTAINER);
+        }
+        NodeList rootFiles = parse(container).getElementsByTagNameNS(CONTAINER_NAMESPACE, "rootfile");
+        if (rootFiles.getLength() == 0) {
+            throw new IOException("Fixture container names no package document");
+        }
+        return ((Element) rootFiles.item(0)).getAttribute("full-path");
+    }
+    
+    /**
+     * Repeats every spine chapter of a book so it occurs {@code scale} times. The copies sit
+     * next to the original chapters, so their stylesheet and image references stay valid.
+     * @return the entries of the scaled book
+     */
+    public static Map<String, byte[]> scale(Map<String, byte[]> entries, int scale) throws IOException {
+        if (scale <= 1) {
+            return entries;
+        }
+        
+        String opfPath = opfPath(entries);
+        String basePath = opfPath.substring(0, opfPath.lastIndexOf('/') + 1);
+        Document opf = parse(entries.get(opfPath));
+        Element manifest = (Element) opf.getElementsByTagNameNS(OPF_NAMESPACE, "manifest").item(0);
+        Element spine = (Element) opf.getElementsByTagNameNS(OPF_NAMESPACE, "spine").item(0);
+        
+        Map<String, Element> itemsById = new LinkedHashMap<>();
+        NodeList items = manifest.getElementsByTagNameNS(OPF_NAMESPACE, "item");
+        for (int i = 0; i < items.getLength(); i++) {
+            Element item = (Element) items.item(i);
+            itemsById.put(item.getAttribute("id"), item);
+        }
+        List<Element> itemRefs = new ArrayList<>();
+        NodeList refs = spine.getElementsByTagNameNS(OPF_NAMESPACE, "itemref");
+        for (int i = 0; i < refs.getLength(); i++) {
+            itemRefs.add((Element) refs.item(i));
+        }
+        
+        Map<String, byte[]> scaled = new LinkedHashMap<>(entries);
+        for (int copy = 2; copy <= scale; copy++) {
+            for (Element itemRef : itemRefs) {
+                Element item = itemsById.get(itemRef.getAttribute("idref"));
+                if (item == null) {
+                    continue;
+                }
+                String href = item.getAttribute("href");
+                int extension = href.lastIndexOf('.');
+                String copyHref = href.substring(0, extension) + "-copy" + copy + href.substring(extension);
+                String copyId = item.getAttribute("id") + "-copy" + copy;
+                
+                Element copyItem = (Element) item.cloneNode(false);
+                copyItem.setAttribute("id", copyId);
+                copyItem.setAttribute("href", copyHref);
+                copyItem.removeAttribute("properties");
+                manifest.appendChild(copyItem);
+                Element copyRef = (Element) itemRef.cloneNode(false);
+                copyRef.setAttribute("idref", copyId);
+                spine.appendChild(copyRef);
+                scaled.put(basePath + copyHref, entries.get(basePath + href));
+            }
+        }
+        scaled.put(opfPath, serialize(opf));
+        return scaled;
+    }
+    
+    /**
+     * Writes entries as an EPUB, with the uncompressed mimetype entry first as readers expect
+     */
+    public static void writeEpub(Map<String, byte[]> entries, Path epubFile) throws IOException {
+        try (OutputStream os = Files.newOutputStream(epubFile);
+             ZipOutputStream zip = new ZipOutputStream(os)) {
+            byte[] mimetype = entries.getOrDefault("mimetype", "application/epub+zip".getBytes(StandardCharsets.US_ASCII));
+            ZipEntry mimetypeEntry = new ZipEntry("mimetype");
+            mimetypeEntry.setMethod(ZipEntry.STORED);
+            mimetypeEntry.setSize(mimetype.length);
+            CRC32 crc = new CRC32();
+            crc.update(mimetype);
+            mimetypeEntry.setCrc(crc.getValue());
+            zip.putNextEntry(mimetypeEntry);
+            zip.write(mimetype);
+            zip.closeEntry();
+            
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                if (!entry.getKey().equals("mimetype")) {
+                    zip.putNextEntry(new ZipEntry(entry.getKey()));
+                    zip.write(entry.getValue());
+                    zip.closeEntry();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes the sample book, scaled, as an EPUB in the given directory
+     * @return the EPUB file
+     */
+    public static Path createEpub(Path directory, int scale) throws IOException {
+        Path epubFile = directory.resolve("book-x" + scale + ".epub");
+        writeEpub(scale(readEntries(sourceDirectory()), scale), epubFile);
+        return epubFile;
+    }
+    
+    /**
+     * Deletes a fixture directory and everything in it
+     */
+    public static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+    
+    static Document parse(byte[] xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch (Exception e) {
+            throw new IOException("Could not parse fixture XML", e);
+        }
+    }
+    
+    private static byte[] serialize(Document document) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(os));
+            return os.toByteArray();
+        } catch (Exception e) {
+            throw new IOException("Could not write fixture XML", e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,46 @@
+package com.epubtopdf.benchmarks;
+
+import com.epubtopdf.EpubReader;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * The sample book, scaled and written to a temporary EPUB once per trial, together with its
+ * raw entries and its fully read content for the benchmarks of later stages
+ */
+@State(Scope.Benchmark)
+public class BookState {
+    /** Number of times every chapter of the sample book occurs */
+    @Param({"1", "4"})
+    public int scale;
+    
+    public Path directory;
+    public Path epubFile;
+    public Map<String, byte[]> entries;
+    public String opfPath;
+    public EpubReader.EpubBook book;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("epub-benchmark");
+        entries = BookFixtures.scale(BookFixtures.readEntries(BookFixtures.sourceDirectory()), scale);
+        opfPath = BookFixtures.opfPath(entries);
+        epubFile = directory.resolve("book-x" + scale + ".epub");
+        BookFixtures.writeEpub(entries, epubFile);
+        book = new EpubReader().readEpub(epubFile.toString());
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BookFixtures.delete(directory);
+    }
+}
\ No newline at end of file
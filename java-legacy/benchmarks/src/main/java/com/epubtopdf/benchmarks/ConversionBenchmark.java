@@ -0,0 +1,69 @@
+package com.epubtopdf.benchmarks;
+
+import com.epubtopdf.ConversionOptions;
+import com.epubtopdf.EpubToPdfConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end conversion of a book, from reading the EPUB to the written PDF. Each operation
+ * takes seconds, so every iteration is a single conversion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn" })
+public class ConversionBenchmark {
+    /** Number of times every chapter of the sample book occurs */
+    @Param({"1"})
+    public int scale;
+    
+    /** single: one document; segmented: one document per chapter; parallel: segments on four threads */
+    @Param({"single", "segmented", "parallel"})
+    public String layout;
+    
+    private Path directory;
+    private Path epubFile;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("epub-benchmark");
+        epubFile = BookFixtures.createEpub(directory, scale);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BookFixtures.delete(directory);
+    }
+    
+    @Benchmark
+    public long convert() throws IOException {
+        ConversionOptions options = new ConversionOptions();
+        if (layout.equals("segmented")) {
+            options.setSegmentedRendering(true);
+        } else if (layout.equals("parallel")) {
+            options.setRenderThreads(4);
+        }
+        Path output = directory.resolve("book.pdf");
+        EpubToPdfConverter.convertEpubToPdf(epubFile.toString(), output.toString(), options);
+        return Files.size(output);
+    }
+}
\ No newline at end of file
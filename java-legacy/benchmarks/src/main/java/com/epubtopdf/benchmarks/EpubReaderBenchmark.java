@@ -0,0 +1,58 @@
+package com.epubtopdf.benchmarks;
+
+import com.epubtopdf.ConversionOptions;
+import com.epubtopdf.EpubPackage;
+import com.epubtopdf.EpubReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a book: parsing the package document, reading the whole archive up front, and
+ * parsing chapters on demand from a lazily opened book
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn" })
+public class EpubReaderBenchmark {
+    
+    @Benchmark
+    public EpubPackage parseOpf(BookState state) throws Exception {
+        // The same parser configuration EpubReader uses
+        Document opf = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(state.entries.get(state.opfPath)));
+        return EpubPackage.parse(opf, state.opfPath);
+    }
+    
+    @Benchmark
+    public EpubReader.EpubBook readBook(BookState state) throws Exception {
+        return new EpubReader().readEpub(state.epubFile.toString());
+    }
+    
+    @Benchmark
+    public EpubReader.EpubBook readBookParallel(BookState state) throws Exception {
+        return new EpubReader(new ConversionOptions().setChapterParallelism(0)).readEpub(state.epubFile.toString());
+    }
+    
+    @Benchmark
+    public void parseChapters(BookState state, Blackhole blackhole) throws Exception {
+        try (EpubReader.EpubBook book = new EpubReader(new ConversionOptions().setLazyLoading(true)).openEpub(state.epubFile.toString())) {
+            for (EpubReader.Chapter chapter : book.getChapters()) {
+                blackhole.consume(chapter.getContent());
+                blackhole.consume(chapter.getHtmlContent());
+            }
+        }
+    }
+}
\ No newline at end of file
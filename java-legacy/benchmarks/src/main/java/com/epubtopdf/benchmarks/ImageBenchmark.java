@@ -0,0 +1,60 @@
+package com.epubtopdf.benchmarks;
+
+import com.epubtopdf.ImageOptimizer;
+import com.epubtopdf.ResourceDeduplicator;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling a book's images: finding duplicates, embedding every distinct image as a PDF image
+ * XObject the way the renderer does, and downsampling them for --image-dpi. Scaling repeats
+ * chapters but not images, so the results do not depend on the scale.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn" })
+public class ImageBenchmark {
+    /** Width of the page content area in CSS pixels, which unconstrained images are rendered at */
+    private static final int PAGE_CONTENT_WIDTH_PX = 643;
+    
+    @Benchmark
+    public Map<String, String> deduplicate(BookState state) {
+        return ResourceDeduplicator.canonicalImageHrefs(state.book.getImages());
+    }
+    
+    @Benchmark
+    public int embed(BookState state) throws IOException {
+        Map<String, String> canonical = ResourceDeduplicator.canonicalImageHrefs(state.book.getImages());
+        try (PDDocument document = new PDDocument()) {
+            int embedded = 0;
+            for (String href : new HashSet<>(canonical.values())) {
+                PDImageXObject image = PDImageXObject.createFromByteArray(document, state.book.getImages().get(href), href);
+                embedded += image.getWidth() > 0 ? 1 : 0;
+            }
+            document.save(OutputStream.nullOutputStream());
+            return embedded;
+        }
+    }
+    
+    @Benchmark
+    public Map<String, byte[]> downsample(BookState state) throws IOException {
+        ImageOptimizer optimizer = new ImageOptimizer(150, 0.85f, Runtime.getRuntime().availableProcessors());
+        return optimizer.optimize(state.book.getImages(), state.book.getImages().keySet(), Collections.emptyMap(), PAGE_CONTENT_WIDTH_PX);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+package com.epubtopdf.benchmarks;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The regex-based XHTML clean-up chapters went through before {@code XhtmlNormalizer}, kept
+ * unchanged as a baseline for the normalization benchmark.
+ */
+final class LegacyXhtmlCompliance {
+    private static final Logger logger = LoggerFactory.getLogger(LegacyXhtmlCompliance.class);
+    
+    private LegacyXhtmlCompliance() {
+    }
+    
+    /**
+     * Extracts and cleans up a chapter's body the way the converter used to
+     */
+    static String normalize(String htmlContent) {
+        org.jsoup.nodes.Document doc = org.jsoup.Jsoup.parse(htmlContent);
+        doc.outputSettings().syntax(org.jsoup.nodes.Document.OutputSettings.Syntax.xml);
+        doc.outputSettings().escapeMode(org.jsoup.nodes.Entities.EscapeMode.xhtml);
+        return ensureXhtmlCompliance(doc.body().html());
+    }
+    
+    /**
+     * Ensures XHTML compliance by fixing self-closing tags and other issues
+     */
+    static String ensureXhtmlCompliance(String htmlContent) {
+        if (htmlContent == null || htmlContent.trim().isEmpty()) {
+            return htmlContent;
+        }
+        
+        // Fix self-closing tags to be XHTML compliant
+        String result = htmlContent;
+        
+        // Fix common self-closing tags - handle both empty tags and tags with attributes
+        // Use simpler approach: just add / before > if it's not already there
+        result = result.replaceAll("<(meta[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(img[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(br[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(hr[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(input[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(area[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(base[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(col[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(embed[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(link[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(param[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(source[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(track[^>]*[^/])>", "<$1/>");
+        result = result.replaceAll("<(wbr[^>]*[^/])>", "<$1/>");
+        
+        // Handle special case of tags with no attributes
+        result = result.replaceAll("<(meta|img|br|hr|input|area|base|col|embed|link|param|source|track|wbr)>", "<$1/>");
+        
+        // Fix any malformed table structures by ensuring proper closing
+        result = fixMalformedTables(result);
+        
+        // Remove any standalone closing tags that shouldn't exist
+        result = result.replaceAll("</meta>", "");
+        result = result.replaceAll("</img>", "");
+        result = result.replaceAll("</br>", "");
+        result = result.replaceAll("</hr>", "");
+        result = result.replaceAll("</input>", "");
+        result = result.replaceAll("</area>", "");
+        result = result.replaceAll("</base>", "");
+        result = result.replaceAll("</col>", "");
+        result = result.replaceAll("</embed>", "");
+        result = result.replaceAll("</link>", "");
+        result = result.replaceAll("</param>", "");
+        result = result.replaceAll("</source>", "");
+        result = result.replaceAll("</track>", "");
+        result = result.replaceAll("</wbr>", "");
+        
+        // Fix HTML entities to be XHTML compliant (convert to numeric entities)
+        result = result.replaceAll("&nbsp;", "&#160;");
+        result = result.replaceAll("&amp;", "&#38;");
+        result = result.replaceAll("&lt;", "&#60;");
+        result = result.replaceAll("&gt;", "&#62;");
+        result = result.replaceAll("&quot;", "&#34;");
+        result = result.replaceAll("&apos;", "&#39;");
+        result = result.replaceAll("&copy;", "&#169;");
+        result = result.replaceAll("&reg;", "&#174;");
+        result = result.replaceAll("&trade;", "&#8482;");
+        result = result.replaceAll("&mdash;", "&#8212;");
+        result = result.replaceAll("&ndash;", "&#8211;");
+        result = result.replaceAll("&ldquo;", "&#8220;");
+        result = result.replaceAll("&rdquo;", "&#8221;");
+        result = result.replaceAll("&lsquo;", "&#8216;");
+        result = result.replaceAll("&rsquo;", "&#8217;");
+        result = result.replaceAll("&hellip;", "&#8230;");
+        
+        return result;
+    }
+    
+    /**
+     * Fixes malformed table structures that might cause XHTML parsing issues
+     */
+    private static String fixMalformedTables(String htmlContent) {
+        if (htmlContent == null || htmlContent.trim().isEmpty()) {
+            return htmlContent;
+        }
+        
+        // Use JSoup to parse and fix table structure
+        try {
+            org.jsoup.nodes.Document tempDoc = org.jsoup.Jsoup.parse(htmlContent);
+            tempDoc.outputSettings().syntax(org.jsoup.nodes.Document.OutputSettings.Syntax.xml);
+            tempDoc.outputSettings().escapeMode(org.jsoup.nodes.Entities.EscapeMode.xhtml);
+            
+            // JSoup will automatically fix malformed HTML structure
+            return tempDoc.html();
+        } catch (Exception e) {
+            logger.warn("Failed to fix malformed tables, using original content", e);
+            return htmlContent;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+package com.epubtopdf.benchmarks;
+
+import com.epubtopdf.EpubArchive;
+import com.epubtopdf.EpubReader;
+import com.epubtopdf.EpubStreamFactory;
+import com.epubtopdf.XhtmlNormalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning every chapter of a book into XHTML body content, with the single-pass normalizer the
+ * converter uses and with the regex clean-up it replaced
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn" })
+public class NormalizationBenchmark {
+    // Images are pointed at the stream factory the same way the converter does before layout
+    private static final XhtmlNormalizer NORMALIZER = new XhtmlNormalizer()
+        .addRule("img", (img, chapterHref) -> {
+            String href = EpubArchive.resolveHref(chapterHref, img.attr("src"));
+            if (href != null) {
+                img.attr("src", EpubStreamFactory.toUri(href));
+            }
+        });
+    
+    @Benchmark
+    public void singlePass(BookState state, Blackhole blackhole) {
+        for (EpubReader.Chapter chapter : state.book.getChapters()) {
+            blackhole.consume(NORMALIZER.normalize(chapter.getHtmlContent(), chapter.getHref()));
+        }
+    }
+    
+    @Benchmark
+    public void legacyRegex(BookState state, Blackhole blackhole) {
+        for (EpubReader.Chapter chapter : state.book.getChapters()) {
+            blackhole.consume(LegacyXhtmlCompliance.normalize(chapter.getHtmlContent()));
+        }
+    }
+}
\ No newline at end of file
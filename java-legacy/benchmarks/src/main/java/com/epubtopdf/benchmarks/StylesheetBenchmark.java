@@ -0,0 +1,34 @@
+package com.epubtopdf.benchmarks;
+
+import com.epubtopdf.EpubReader;
+import com.epubtopdf.StylesheetCompiler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembling the CSS of every chapter from its linked stylesheets, as segmented rendering does
+ * for each segment. A new compiler per operation measures a conversion starting cold.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn" })
+public class StylesheetBenchmark {
+    
+    @Benchmark
+    public void compileChapterStyles(BookState state, Blackhole blackhole) {
+        StylesheetCompiler compiler = new StylesheetCompiler(state.book.getCssFiles());
+        for (EpubReader.Chapter chapter : state.book.getChapters()) {
+            blackhole.consume(compiler.compile(chapter.getStylesheets()));
+        }
+    }
+}
\ No newline at end of file
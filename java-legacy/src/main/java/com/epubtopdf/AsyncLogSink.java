@@ -0,0 +1,140 @@
+package com.epubtopdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Output stream that hands every write to a background thread, so threads that log or trace do
+ * not wait for the console or the disk. Writes are queued in order; only when the queue is full
+ * does a writer wait for the background thread to catch up, so nothing is dropped.
+ */
+public class AsyncLogSink extends OutputStream {
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final byte[] END = new byte[0];
+    
+    private final OutputStream target;
+    private final boolean closeTarget;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean closed;
+    
+    /**
+     * @param target stream written on the background thread
+     * @param closeTarget whether closing the sink closes the target as well
+     */
+    public AsyncLogSink(OutputStream target, boolean closeTarget, String threadName) {
+        this.target = target;
+        this.closeTarget = closeTarget;
+        this.writer = new Thread(this::drain, threadName);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    /**
+     * Routes System.err, where the log is written, through a background thread for the rest of
+     * the run. Queued lines are written out when the JVM exits.
+     */
+    public static synchronized void installForConsole() {
+        if (System.err instanceof AsyncPrintStream) {
+            return;
+        }
+        AsyncLogSink sink = new AsyncLogSink(System.err, false, "async-log");
+        System.setErr(new AsyncPrintStream(sink));
+        Runtime.getRuntime().addShutdownHook(new Thread(sink::closeQuietly, "async-log-drain"));
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (closed) {
+            throw new IOException("Log sink is closed");
+        }
+        enqueue(Arrays.copyOfRange(b, off, off + len));
+    }
+    
+    /**
+     * Does nothing; the background thread flushes the target whenever the queue runs empty
+     */
+    @Override
+    public void flush() {
+    }
+    
+    /**
+     * Writes out everything queued so far and stops the background thread
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        enqueue(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (closeTarget) {
+            target.close();
+        }
+    }
+    
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+    }
+    
+    private void enqueue(byte[] chunk) throws IOException {
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing log output", e);
+        }
+    }
+    
+    private void drain() {
+        try {
+            while (true) {
+                byte[] chunk = queue.take();
+                if (chunk == END) {
+                    target.flush();
+                    return;
+                }
+                target.write(chunk);
+                if (queue.isEmpty()) {
+                    target.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The target is gone; drop further output rather than blocking the writers
+            queue.clear();
+            closed = true;
+        }
+    }
+    
+    /**
+     * Marks a System.err that is already asynchronous
+     */
+    private static class AsyncPrintStream extends PrintStream {
+        AsyncPrintStream(AsyncLogSink sink) {
+            super(sink, false);
+        }
+    }
+}
\ No newline at end of file
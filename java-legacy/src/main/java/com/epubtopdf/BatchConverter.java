@@ -0,0 +1,277 @@
+package com.epubtopdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts many books in one JVM, so class loading, JIT warm-up and font loading are paid once
+ * per batch instead of once per book. Books are converted concurrently on a fixed number of
+ * workers; a book that fails is reported and the rest of the batch carries on.
+ */
+public class BatchConverter {
+    private static final Logger logger = LoggerFactory.getLogger(BatchConverter.class);
+    
+    /** Name of the report written to the output directory */
+    public static final String REPORT_FILE = "batch-report.tsv";
+    
+    /**
+     * One book of a batch
+     */
+    public static class Job {
+        private final String inputPath;
+        private final String outputPath;
+        
+        public Job(String inputPath, String outputPath) {
+            this.inputPath = inputPath;
+            this.outputPath = outputPath;
+        }
+        
+        public String getInputPath() { return inputPath; }
+        public String getOutputPath() { return outputPath; }
+    }
+    
+    /**
+     * Outcome of one book
+     */
+    public static class Result {
+        private final Job job;
+        private final long millis;
+        private final String error;
+        
+        public Result(Job job, long millis, String error) {
+            this.job = job;
+            this.millis = millis;
+            this.error = error;
+        }
+        
+        public Job getJob() { return job; }
+        public long getMillis() { return millis; }
+        /** Failure message, or null if the book was converted */
+        public String getError() { return error; }
+        public boolean isSuccess() { return error == null; }
+    }
+    
+    private final ConversionOptions options;
+    private final int workers;
+    
+    /**
+     * @param options settings applied to every book; the worker count and per-book memory
+     *                budget are taken from them as well
+     */
+    public BatchConverter(ConversionOptions options) {
+        if (options.getPreviousPdf() != null) {
+            throw new IllegalArgumentException("A previous output can only be given for a single book");
+        }
+        this.options = options;
+        this.workers = effectiveWorkers(options);
+        applyBookMemory(options);
+    }
+    
+    /**
+     * Splits the per-book memory budget between the PDFBox documents a book keeps open at once,
+     * leaving the other half for the parsed book and the layout. An explicit PDFBox limit wins.
+     */
+    static void applyBookMemory(ConversionOptions options) {
+        options.setMaxMainMemoryBytes(maxMainMemoryBytes(options));
+    }
+    
+    /**
+     * Returns the PDFBox limit per document that a book's options amount to, or -1 for no limit
+     */
+    static long maxMainMemoryBytes(ConversionOptions options) {
+        long bookMemory = options.getBookMemoryBytes();
+        if (bookMemory > 0 && options.getMaxMainMemoryBytes() < 0) {
+            return bookMemory / 2 / openDocuments(options);
+        }
+        return options.getMaxMainMemoryBytes();
+    }
+    
+    /**
+     * Returns how many PDFBox documents a book keeps open at once: one per render thread and the
+     * assembled output in segmented mode, otherwise the single output document
+     */
+    static int openDocuments(ConversionOptions options) {
+        boolean segmented = options.isSegmentedRendering() || options.getRenderThreads() > 1
+            || options.getCacheDirectory() != null || options.isIncremental();
+        return segmented ? options.getRenderThreads() + 1 : 1;
+    }
+    
+    /**
+     * Limits the workers so that their memory budgets fit in the heap together
+     */
+    static int effectiveWorkers(ConversionOptions options) {
+        int workers = options.getBatchWorkers();
+        long bookMemory = options.getBookMemoryBytes();
+        if (bookMemory > 0) {
+            long maxHeap = Runtime.getRuntime().maxMemory();
+            int affordable = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxHeap / bookMemory));
+            if (affordable < workers) {
+                logger.warn("A heap of {} MB holds {} books of {} MB, running {} workers instead of {}",
+                    maxHeap / (1024 * 1024), affordable, bookMemory / (1024 * 1024), affordable, workers);
+                return affordable;
+            }
+        }
+        return workers;
+    }
+    
+    /**
+     * Lists every EPUB below a directory, mirroring its subdirectories in the output directory
+     */
+    public static List<Job> listDirectory(Path inputDir, Path outputDir) throws IOException {
+        try (Stream<Path> files = Files.walk(inputDir)) {
+            return files
+                .filter(Files::isRegularFile)
+                .filter(file -> file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".epub"))
+                .sorted()
+                .map(file -> new Job(file.toString(), outputDir.resolve(toPdfName(inputDir.relativize(file))).toString()))
+                .collect(Collectors.toList());
+        }
+    }
+    
+    /**
+     * Reads a manifest listing one book per line: the EPUB path, optionally followed by a tab
+     * and the PDF path. Relative EPUB paths are resolved against the manifest's directory and
+     * relative PDF paths against the output directory. Blank lines and lines starting with '#'
+     * are skipped.
+     */
+    public static List<Job> readManifest(Path manifestFile, Path outputDir) throws IOException {
+        Path baseDir = manifestFile.toAbsolutePath().getParent();
+        List<Job> jobs = new ArrayList<>();
+        for (String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            
+            String[] fields = line.split("\t");
+            Path input = baseDir.resolve(fields[0].trim());
+            Path output = fields.length > 1 && !fields[1].trim().isEmpty()
+                ? outputDir.resolve(fields[1].trim())
+                : outputDir.resolve(toPdfName(input.getFileName()));
+            jobs.add(new Job(input.toString(), output.toString()));
+        }
+        return jobs;
+    }
+    
+    private static Path toPdfName(Path epubPath) {
+        String name = epubPath.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        Path pdfName = Paths.get((extension > 0 ? name.substring(0, extension) : name) + ".pdf");
+        return epubPath.getParent() != null ? epubPath.getParent().resolve(pdfName) : pdfName;
+    }
+    
+    /**
+     * Converts every book and returns the results in job order. Failures are recorded in the
+     * results rather than thrown.
+     */
+    public List<Result> convertAll(List<Job> jobs) throws InterruptedException {
+        logger.info("Converting {} books on {} workers", jobs.size(), workers);
+        
+        // Start the largest books first, so a big book does not keep one worker busy at the end
+        long[] inputSizes = new long[jobs.size()];
+        List<Integer> schedule = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            inputSizes[i] = inputSize(jobs.get(i));
+            schedule.add(i);
+        }
+        schedule.sort(Comparator.comparingLong((Integer i) -> inputSizes[i]).reversed());
+        
+        AtomicInteger finished = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "batch-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int index : schedule) {
+                Job job = jobs.get(index);
+                futures.add(executor.submit(() -> {
+                    Result result = convert(job);
+                    logProgress(result, finished.incrementAndGet(), jobs.size());
+                    return result;
+                }));
+            }
+            
+            List<Result> results = new ArrayList<>(Collections.nCopies(jobs.size(), null));
+            for (int i = 0; i < schedule.size(); i++) {
+                try {
+                    results.set(schedule.get(i), futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // convert() catches everything it can recover from
+                    throw new IllegalStateException("Batch worker failed", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private Result convert(Job job) {
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            EpubToPdfConverter.convertEpubToPdf(job.getInputPath(), job.getOutputPath(), options);
+        } catch (Exception | OutOfMemoryError e) {
+            // The book's memory is unreachable once it has failed, so the other workers can carry on
+            logger.error("Could not convert {}", job.getInputPath(), e);
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        }
+        return new Result(job, (System.nanoTime() - start) / 1_000_000, error);
+    }
+    
+    private static void logProgress(Result result, int finished, int total) {
+        if (result.isSuccess()) {
+            logger.info("[{}/{}] Converted {} in {} ms", finished, total, result.getJob().getInputPath(), result.getMillis());
+        } else {
+            logger.warn("[{}/{}] Failed {} after {} ms: {}", finished, total, result.getJob().getInputPath(),
+                result.getMillis(), result.getError());
+        }
+    }
+    
+    private static long inputSize(Job job) {
+        try {
+            return Files.size(Paths.get(job.getInputPath()));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Writes one tab-separated line per book with its status, conversion time, output size and error
+     */
+    public static void writeReport(List<Result> results, Path reportFile) throws IOException {
+        if (reportFile.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(reportFile.toAbsolutePath().getParent());
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8)) {
+            writer.write("status\tmillis\toutput_bytes\tinput\toutput\terror\n");
+            for (Result result : results) {
+                Job job = result.getJob();
+                long outputBytes = result.isSuccess() ? Files.size(Paths.get(job.getOutputPath())) : 0;
+                writer.write((result.isSuccess() ? "ok" : "failed") + "\t" + result.getMillis() + "\t" + outputBytes
+                    + "\t" + job.getInputPath() + "\t" + job.getOutputPath()
+                    + "\t" + (result.isSuccess() ? "" : result.getError().replaceAll("\\s+", " ")) + "\n");
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,428 @@
+package com.epubtopdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Wall time, CPU time, allocation, archive reads and heap use of each stage of one conversion.
+ * Code measures a stage by holding a {@link Span} open while it works; spans may be opened on
+ * any thread, and work handed to a pool can carry the submitting thread's stage along with
+ * {@link #propagate}. Finished conversions are passed to the registered {@link Listener}s and
+ * can be written as a JSON report next to the output.
+ * <p>
+ * Heap use is sampled by one background thread while any span is open and never reset, so
+ * concurrent conversions do not disturb each other's measurements. The heap is shared by the
+ * whole JVM, though: the peak of a stage includes whatever else the process held at the time,
+ * and is only the book's own peak when a single book is converted.
+ */
+public class ConversionMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(ConversionMetrics.class);
+    
+    public static final String ZIP_OPEN = "zip_open";
+    public static final String OPF_PARSE = "opf_parse";
+    public static final String CHAPTERS = "chapters";
+    public static final String CSS = "css";
+    public static final String IMAGES = "images";
+    public static final String FONTS = "fonts";
+    /** Single front-to-back read of the archive with --sequential-read, covering chapters, CSS, images and fonts */
+    public static final String ARCHIVE_PASS = "archive_pass";
+    public static final String HTML_BUILD = "html_build";
+    public static final String LAYOUT = "layout";
+    /** Drawing the laid out pages and writing the PDF */
+    public static final String PDF_WRITE = "pdf_write";
+    /** Merging segments, sharing resources and building the outline in segmented mode */
+    public static final String ASSEMBLE = "assemble";
+    
+    private static final String REPORT_SUFFIX = ".metrics.json";
+    
+    private static final long HEAP_SAMPLE_MILLIS = 20;
+    
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<Deque<Span>> openSpans = ThreadLocal.withInitial(ArrayDeque::new);
+    /** Spans of all threads and conversions that are open, whose peak heap the sampler raises */
+    private static final Set<Span> sampledSpans = ConcurrentHashMap.newKeySet();
+    private static ScheduledExecutorService heapSampler;
+    
+    /**
+     * Receives the metrics of every conversion once it has finished, for example to feed them
+     * into a metrics registry. Called on the converting thread, so it should return quickly.
+     */
+    public interface Listener {
+        void conversionFinished(ConversionMetrics metrics);
+    }
+    
+    /**
+     * Work measured by {@link #measure}
+     */
+    public interface Work<T, E extends Exception> {
+        T run() throws E;
+    }
+    
+    /**
+     * Totals of one stage over all spans that measured it
+     */
+    public static class Stage {
+        private final String name;
+        private final List<long[]> intervals = new ArrayList<>();
+        private long cpuNanos;
+        private long allocatedBytes;
+        private long bytesRead;
+        private long peakHeapBytes;
+        
+        Stage(String name) {
+            this.name = name;
+        }
+        
+        public String getName() { return name; }
+        public synchronized int getSpans() { return intervals.size(); }
+        /** CPU time of all threads while they worked on the stage */
+        public synchronized long getCpuNanos() { return cpuNanos; }
+        /** Heap allocated by all threads while they worked on the stage, or -1 if the JVM does not report it */
+        public synchronized long getAllocatedBytes() { return allocatedBytes; }
+        /** Bytes read from the EPUB archive, as stored in it */
+        public synchronized long getBytesRead() { return bytesRead; }
+        /**
+         * Highest heap use sampled while the stage ran. Heap use is JVM-wide, so with concurrent
+         * conversions it includes the other books.
+         */
+        public synchronized long getPeakHeapBytes() { return peakHeapBytes; }
+        
+        /**
+         * Time during which at least one span of the stage was open, so concurrent spans are
+         * counted once and gaps between spans not at all
+         */
+        public synchronized long getWallNanos() {
+            List<long[]> sorted = new ArrayList<>(intervals);
+            sorted.sort((a, b) -> Long.compare(a[0], b[0]));
+            long wall = 0;
+            long coveredUntil = Long.MIN_VALUE;
+            for (long[] interval : sorted) {
+                long from = Math.max(interval[0], coveredUntil);
+                if (interval[1] > from) {
+                    wall += interval[1] - from;
+                    coveredUntil = interval[1];
+                }
+            }
+            return wall;
+        }
+        
+        private synchronized void add(long start, long end, long cpu, long allocated, long read, long peakHeap) {
+            intervals.add(new long[] {start, end});
+            cpuNanos += cpu;
+            allocatedBytes = allocated < 0 || allocatedBytes < 0 ? -1 : allocatedBytes + allocated;
+            bytesRead += read;
+            peakHeapBytes = Math.max(peakHeapBytes, peakHeap);
+        }
+    }
+    
+    /**
+     * Measures one thread's work on a stage until it is closed
+     */
+    public class Span implements AutoCloseable {
+        private final Stage stage;
+        private final long start;
+        private final long startCpu;
+        private final long startAllocated;
+        private long bytesRead;
+        private final AtomicLong peakHeap = new AtomicLong(usedHeap());
+        private boolean closed;
+        
+        private Span(Stage stage) {
+            this.stage = stage;
+            startHeapSampler();
+            sampledSpans.add(this);
+            this.startCpu = threadCpuNanos();
+            this.startAllocated = threadAllocatedBytes();
+            this.start = System.nanoTime();
+            openSpans.get().push(this);
+        }
+        
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sampledSpans.remove(this);
+            observeHeap(usedHeap());
+            long end = System.nanoTime();
+            long allocated = threadAllocatedBytes();
+            long cpu = threadCpuNanos() - startCpu;
+            stage.add(start, end, cpu, allocated < 0 || startAllocated < 0 ? -1 : allocated - startAllocated, bytesRead, peakHeap.get());
+            openSpans.get().remove(this);
+            if (trace.isEnabled()) {
+                trace.event("stage", "name", stage.getName(), "millis", (end - start) / 1_000_000, "cpuMillis", cpu / 1_000_000);
+            }
+        }
+        
+        private void observeHeap(long used) {
+            peakHeap.accumulateAndGet(used, Math::max);
+        }
+        
+        private ConversionMetrics metrics() {
+            return ConversionMetrics.this;
+        }
+    }
+    
+    private final String inputPath;
+    private final String outputPath;
+    private final Trace trace;
+    private final long start = System.nanoTime();
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private volatile long end;
+    private volatile long outputBytes = -1;
+    private volatile String error;
+    
+    /**
+     * Metrics of a conversion that is not tied to files, such as a reader used on its own
+     */
+    public ConversionMetrics() {
+        this(null, null);
+    }
+    
+    public ConversionMetrics(String inputPath, String outputPath) {
+        this(inputPath, outputPath, Trace.DISABLED);
+    }
+    
+    /**
+     * @param trace trace of the conversion, which also receives an event for every closed span
+     */
+    public ConversionMetrics(String inputPath, String outputPath, Trace trace) {
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.trace = trace;
+    }
+    
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Starts measuring the current thread's work on a stage
+     */
+    public Span start(String stageName) {
+        Stage stage;
+        synchronized (stages) {
+            stage = stages.computeIfAbsent(stageName, Stage::new);
+        }
+        return new Span(stage);
+    }
+    
+    /**
+     * Runs a piece of work inside a span of the given stage and returns its result
+     */
+    public <T, E extends Exception> T measure(String stageName, Work<T, E> work) throws E {
+        try (Span span = start(stageName)) {
+            return work.run();
+        }
+    }
+    
+    /**
+     * Counts bytes read from the archive towards the innermost span open on the current thread
+     */
+    public static void recordRead(long bytes) {
+        Span span = openSpans.get().peek();
+        if (span != null && bytes > 0) {
+            span.bytesRead += bytes;
+        }
+    }
+    
+    /**
+     * Wraps a task so that it is measured as part of the stage the submitting thread is working
+     * on. Without an open span the task is returned as it is.
+     */
+    public static <V> Callable<V> propagate(Callable<V> task) {
+        Span span = openSpans.get().peek();
+        if (span == null) {
+            return task;
+        }
+        ConversionMetrics metrics = span.metrics();
+        String stageName = span.stage.getName();
+        return () -> {
+            try (Span workerSpan = metrics.start(stageName)) {
+                return task.call();
+            }
+        };
+    }
+    
+    /**
+     * Marks the conversion as finished and passes it to the listeners
+     * @param error failure message, or null if the PDF was written
+     */
+    public void finish(String error) {
+        this.end = System.nanoTime();
+        this.error = error;
+        if (error == null && outputPath != null) {
+            try {
+                outputBytes = Files.size(Paths.get(outputPath));
+            } catch (IOException e) {
+                outputBytes = -1;
+            }
+        }
+        
+        for (Listener listener : listeners) {
+            try {
+                listener.conversionFinished(this);
+            } catch (RuntimeException e) {
+                logger.warn("Metrics listener failed", e);
+            }
+        }
+    }
+    
+    public String getInputPath() { return inputPath; }
+    /** Trace of the conversion, or {@link Trace#DISABLED} */
+    public Trace getTrace() { return trace; }
+    public String getOutputPath() { return outputPath; }
+    /** Size of the written PDF, or -1 if the conversion failed */
+    public long getOutputBytes() { return outputBytes; }
+    /** Failure message, or null if the conversion succeeded */
+    public String getError() { return error; }
+    public boolean isSuccess() { return error == null; }
+    
+    /** Time from creation until {@link #finish}, or until now if the conversion is still running */
+    public long getWallNanos() {
+        return (end != 0 ? end : System.nanoTime()) - start;
+    }
+    
+    /**
+     * Returns the stages measured so far, in the order they were first entered
+     */
+    public List<Stage> getStages() {
+        synchronized (stages) {
+            return new ArrayList<>(stages.values());
+        }
+    }
+    
+    public long getCpuNanos() {
+        return getStages().stream().mapToLong(Stage::getCpuNanos).sum();
+    }
+    
+    /** Heap allocated over all stages, or -1 if the JVM does not report allocation */
+    public long getAllocatedBytes() {
+        List<Stage> measured = getStages();
+        if (measured.stream().anyMatch(stage -> stage.getAllocatedBytes() < 0)) {
+            return -1;
+        }
+        return measured.stream().mapToLong(Stage::getAllocatedBytes).sum();
+    }
+    
+    public long getBytesRead() {
+        return getStages().stream().mapToLong(Stage::getBytesRead).sum();
+    }
+    
+    public long getPeakHeapBytes() {
+        return getStages().stream().mapToLong(Stage::getPeakHeapBytes).max().orElse(0);
+    }
+    
+    /**
+     * Returns the path of the report belonging to a PDF
+     */
+    public static Path reportPathFor(String pdfPath) {
+        return Paths.get(pdfPath + REPORT_SUFFIX);
+    }
+    
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"input\":").append(Json.quote(inputPath));
+        json.append(",\"output\":").append(Json.quote(outputPath));
+        json.append(",\"success\":").append(isSuccess());
+        if (error != null) {
+            json.append(",\"error\":").append(Json.quote(error));
+        }
+        json.append(",\"outputBytes\":").append(outputBytes);
+        json.append(",\"wallMillis\":").append(getWallNanos() / 1_000_000);
+        json.append(",\"cpuMillis\":").append(getCpuNanos() / 1_000_000);
+        json.append(",\"allocatedBytes\":").append(getAllocatedBytes());
+        json.append(",\"bytesRead\":").append(getBytesRead());
+        json.append(",\"peakHeapBytes\":").append(getPeakHeapBytes());
+        json.append(",\"stages\":[");
+        json.append(getStages().stream().map(stage -> "{\"name\":" + Json.quote(stage.getName())
+            + ",\"spans\":" + stage.getSpans()
+            + ",\"wallMillis\":" + stage.getWallNanos() / 1_000_000
+            + ",\"cpuMillis\":" + stage.getCpuNanos() / 1_000_000
+            + ",\"allocatedBytes\":" + stage.getAllocatedBytes()
+            + ",\"bytesRead\":" + stage.getBytesRead()
+            + ",\"peakHeapBytes\":" + stage.getPeakHeapBytes() + "}")
+            .collect(Collectors.joining(",")));
+        return json.append("]}").toString();
+    }
+    
+    /**
+     * Writes the JSON report next to the output
+     */
+    public void writeReport() throws IOException {
+        Files.write(reportPathFor(outputPath), (toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static long threadCpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+    
+    private static long threadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+    
+    private static long usedHeap() {
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+    
+    private static synchronized void startHeapSampler() {
+        if (heapSampler == null) {
+            heapSampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "heap-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heapSampler.scheduleAtFixedRate(ConversionMetrics::sampleHeap, HEAP_SAMPLE_MILLIS, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Raises the peak of every open span to the heap in use now. Peaks shorter than the sampling
+     * interval can be missed, so the result is a lower bound of the actual peak.
+     */
+    private static void sampleHeap() {
+        if (!sampledSpans.isEmpty()) {
+            long used = usedHeap();
+            for (Span span : sampledSpans) {
+                span.observeHeap(used);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,386 @@
+package com.epubtopdf;
+
+/**
+ * Tunable settings for a single EPUB to PDF conversion
+ */
+public class ConversionOptions {
+    private boolean lazyLoading;
+    private int chapterParallelism = 1;
+    private boolean sequentialExtraction;
+    private boolean segmentedRendering;
+    private int chaptersPerSegment = 1;
+    private int renderThreads = 1;
+    private long maxMainMemoryBytes = -1;
+    private String scratchDirectory;
+    private int imageDpi;
+    private float jpegQuality = 0.85f;
+    private boolean fontReport;
+    private boolean metricsReport;
+    private boolean trace;
+    private boolean asyncLog;
+    private String diagnosticsDirectory;
+    private long diagnosticsMaxBytes = 64L * 1024 * 1024;
+    private String cacheDirectory;
+    private long cacheMaxBytes = 1024L * 1024 * 1024;
+    private boolean incremental;
+    private String previousPdf;
+    private boolean analyze;
+    private boolean batch;
+    private int batchWorkers = 1;
+    private long bookMemoryBytes = -1;
+    private int serverPort = -1;
+    private int jobQueueSize = 16;
+    private long jobTimeoutSeconds = 600;
+    private long maxUploadBytes = 100L * 1024 * 1024;
+    
+    /**
+     * Whether chapters, CSS and images are read from the archive on demand instead of up front
+     */
+    public boolean isLazyLoading() {
+        return lazyLoading;
+    }
+    
+    public ConversionOptions setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+        return this;
+    }
+    
+    /**
+     * Number of threads used to read and parse spine items when the book is read eagerly.
+     * A value of 1 parses chapters serially on the calling thread.
+     */
+    public int getChapterParallelism() {
+        return chapterParallelism;
+    }
+    
+    /**
+     * @param chapterParallelism thread count, or 0 or less to use one thread per available processor
+     */
+    public ConversionOptions setChapterParallelism(int chapterParallelism) {
+        this.chapterParallelism = chapterParallelism > 0 ? chapterParallelism : Runtime.getRuntime().availableProcessors();
+        return this;
+    }
+    
+    /**
+     * Whether an eagerly read book is extracted in one pass over the archive in stored entry order,
+     * instead of looking entries up category by category in manifest order
+     */
+    public boolean isSequentialExtraction() {
+        return sequentialExtraction;
+    }
+    
+    public ConversionOptions setSequentialExtraction(boolean sequentialExtraction) {
+        this.sequentialExtraction = sequentialExtraction;
+        return this;
+    }
+    
+    /**
+     * Whether chapters are laid out as separate documents and merged page by page
+     */
+    public boolean isSegmentedRendering() {
+        return segmentedRendering;
+    }
+    
+    public ConversionOptions setSegmentedRendering(boolean segmentedRendering) {
+        this.segmentedRendering = segmentedRendering;
+        return this;
+    }
+    
+    /**
+     * Number of consecutive spine chapters laid out together in segmented rendering
+     */
+    public int getChaptersPerSegment() {
+        return chaptersPerSegment;
+    }
+    
+    public ConversionOptions setChaptersPerSegment(int chaptersPerSegment) {
+        this.chaptersPerSegment = Math.max(1, chaptersPerSegment);
+        return this;
+    }
+    
+    /**
+     * Number of threads laying out chapter segments concurrently. Values above 1 imply
+     * segmented rendering; pages are still assembled in spine order.
+     */
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+    
+    /**
+     * @param renderThreads thread count, or 0 or less to use one thread per available processor
+     */
+    public ConversionOptions setRenderThreads(int renderThreads) {
+        this.renderThreads = renderThreads > 0 ? renderThreads : Runtime.getRuntime().availableProcessors();
+        return this;
+    }
+    
+    /**
+     * Maximum heap PDFBox may use per document before spilling to scratch files, or -1 for no limit
+     */
+    public long getMaxMainMemoryBytes() {
+        return maxMainMemoryBytes;
+    }
+    
+    public ConversionOptions setMaxMainMemoryBytes(long maxMainMemoryBytes) {
+        this.maxMainMemoryBytes = maxMainMemoryBytes;
+        return this;
+    }
+    
+    /**
+     * Directory for PDFBox scratch files, or null to use the system temp directory when spilling
+     */
+    public String getScratchDirectory() {
+        return scratchDirectory;
+    }
+    
+    public ConversionOptions setScratchDirectory(String scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+        return this;
+    }
+    
+    /**
+     * Resolution images are downsampled to for their rendered size, or 0 to embed them unchanged
+     */
+    public int getImageDpi() {
+        return imageDpi;
+    }
+    
+    public ConversionOptions setImageDpi(int imageDpi) {
+        this.imageDpi = Math.max(0, imageDpi);
+        return this;
+    }
+    
+    /**
+     * JPEG quality between 0 and 1 used when recompressing images
+     */
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+    
+    public ConversionOptions setJpegQuality(float jpegQuality) {
+        this.jpegQuality = Math.max(0f, Math.min(1f, jpegQuality));
+        return this;
+    }
+    
+    /**
+     * Whether the embedded fonts of the output are listed in a report next to it
+     */
+    public boolean isFontReport() {
+        return fontReport;
+    }
+    
+    public ConversionOptions setFontReport(boolean fontReport) {
+        this.fontReport = fontReport;
+        return this;
+    }
+    
+    /**
+     * Whether the per-stage metrics of the conversion are written to a report next to the output
+     */
+    public boolean isMetricsReport() {
+        return metricsReport;
+    }
+    
+    public ConversionOptions setMetricsReport(boolean metricsReport) {
+        this.metricsReport = metricsReport;
+        return this;
+    }
+    
+    /**
+     * Whether each conversion writes a structured trace of its stages and resources next to its output
+     */
+    public boolean isTrace() {
+        return trace;
+    }
+    
+    public ConversionOptions setTrace(boolean trace) {
+        this.trace = trace;
+        return this;
+    }
+    
+    /**
+     * Whether the book is only scanned and its conversion cost estimated, without rendering it
+     */
+    public boolean isAnalyze() {
+        return analyze;
+    }
+    
+    public ConversionOptions setAnalyze(boolean analyze) {
+        this.analyze = analyze;
+        return this;
+    }
+    
+    /**
+     * Whether the log and traces are written on background threads instead of by the converting threads
+     */
+    public boolean isAsyncLog() {
+        return asyncLog;
+    }
+    
+    public ConversionOptions setAsyncLog(boolean asyncLog) {
+        this.asyncLog = asyncLog;
+        return this;
+    }
+    
+    /**
+     * Directory below which each conversion writes its debug artifacts, or null to write none
+     */
+    public String getDiagnosticsDirectory() {
+        return diagnosticsDirectory;
+    }
+    
+    public ConversionOptions setDiagnosticsDirectory(String diagnosticsDirectory) {
+        this.diagnosticsDirectory = diagnosticsDirectory;
+        return this;
+    }
+    
+    /**
+     * Most bytes of debug artifacts a single conversion writes
+     */
+    public long getDiagnosticsMaxBytes() {
+        return diagnosticsMaxBytes;
+    }
+    
+    public ConversionOptions setDiagnosticsMaxBytes(long diagnosticsMaxBytes) {
+        this.diagnosticsMaxBytes = Math.max(0, diagnosticsMaxBytes);
+        return this;
+    }
+    
+    /**
+     * Directory of the rendered segment cache, or null to render every segment. Setting it
+     * implies segmented rendering, since segments are the unit that is cached.
+     */
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+    
+    public ConversionOptions setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        return this;
+    }
+    
+    /**
+     * Size the render cache is evicted down to after each conversion
+     */
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+    
+    public ConversionOptions setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = Math.max(0, cacheMaxBytes);
+        return this;
+    }
+    
+    /**
+     * Whether segments unchanged since the previous conversion reuse its pages. Implies segmented
+     * rendering; a manifest of segment hashes is written next to the output for the next run.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+    
+    public ConversionOptions setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+    
+    /**
+     * PDF of the previous conversion to reuse pages from, or null to use the existing output file
+     */
+    public String getPreviousPdf() {
+        return previousPdf;
+    }
+    
+    public ConversionOptions setPreviousPdf(String previousPdf) {
+        this.previousPdf = previousPdf;
+        return this;
+    }
+    
+    /**
+     * Whether the command line converts a directory or manifest of books instead of a single book
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+    
+    public ConversionOptions setBatch(boolean batch) {
+        this.batch = batch;
+        return this;
+    }
+    
+    /**
+     * Number of books converted concurrently in batch mode
+     */
+    public int getBatchWorkers() {
+        return batchWorkers;
+    }
+    
+    /**
+     * @param batchWorkers worker count, or 0 or less to use one worker per available processor
+     */
+    public ConversionOptions setBatchWorkers(int batchWorkers) {
+        this.batchWorkers = batchWorkers > 0 ? batchWorkers : Runtime.getRuntime().availableProcessors();
+        return this;
+    }
+    
+    /**
+     * Heap each book may use in batch mode, or -1 for no budget. The worker count is capped so the
+     * budgets fit in the heap, and PDFBox buffers are sized from it unless set explicitly.
+     */
+    public long getBookMemoryBytes() {
+        return bookMemoryBytes;
+    }
+    
+    public ConversionOptions setBookMemoryBytes(long bookMemoryBytes) {
+        this.bookMemoryBytes = bookMemoryBytes;
+        return this;
+    }
+    
+    /**
+     * Loopback port the conversion service listens on, or -1 to convert from the command line
+     */
+    public int getServerPort() {
+        return serverPort;
+    }
+    
+    public ConversionOptions setServerPort(int serverPort) {
+        this.serverPort = serverPort;
+        return this;
+    }
+    
+    /**
+     * Number of jobs the conversion service holds waiting for a worker before rejecting submissions
+     */
+    public int getJobQueueSize() {
+        return jobQueueSize;
+    }
+    
+    public ConversionOptions setJobQueueSize(int jobQueueSize) {
+        this.jobQueueSize = Math.max(1, jobQueueSize);
+        return this;
+    }
+    
+    /**
+     * Time after which the conversion service gives up on a running job, or 0 for no limit
+     */
+    public long getJobTimeoutSeconds() {
+        return jobTimeoutSeconds;
+    }
+    
+    public ConversionOptions setJobTimeoutSeconds(long jobTimeoutSeconds) {
+        this.jobTimeoutSeconds = Math.max(0, jobTimeoutSeconds);
+        return this;
+    }
+    
+    /**
+     * Largest EPUB the conversion service accepts
+     */
+    public long getMaxUploadBytes() {
+        return maxUploadBytes;
+    }
+    
+    public ConversionOptions setMaxUploadBytes(long maxUploadBytes) {
+        this.maxUploadBytes = Math.max(0, maxUploadBytes);
+        return this;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,452 @@
+package com.epubtopdf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Resident conversion service. Keeping the JVM running avoids paying startup, class loading
+ * and JIT warm-up per conversion. Jobs are submitted over HTTP on the loopback interface:
+ * <ul>
+ *   <li>{@code POST /jobs} with the EPUB as the request body queues a job and returns its id</li>
+ *   <li>{@code GET /jobs/{id}} returns the job's status as JSON</li>
+ *   <li>{@code GET /jobs/{id}/pdf} downloads the PDF once the job is done</li>
+ *   <li>{@code GET /jobs/{id}/trace} downloads the trace of a job submitted with {@code ?trace=true}</li>
+ * </ul>
+ * The job queue is bounded; when it is full, submissions are rejected with 503 so callers back
+ * off instead of piling up work the service cannot finish.
+ */
+public class ConversionServer {
+    private static final Logger logger = LoggerFactory.getLogger(ConversionServer.class);
+    
+    /** How long finished jobs and their files are kept for download */
+    private static final long JOB_RETENTION_MINUTES = 60;
+    private static final int REQUEST_THREADS = 4;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    
+    enum Status { QUEUED, RUNNING, DONE, FAILED, TIMED_OUT }
+    
+    /**
+     * A submitted conversion. Its fields are written by the worker and read by request threads.
+     */
+    private static class Job {
+        final String id = UUID.randomUUID().toString();
+        final Path directory;
+        final long submittedAt = System.currentTimeMillis();
+        final boolean traced;
+        volatile Status status = Status.QUEUED;
+        volatile long startedAt;
+        volatile long finishedAt;
+        volatile String error;
+        volatile Future<?> future;
+        /** Whether a worker is still working on the job, which may outlast its timeout */
+        volatile boolean running;
+        
+        Job(Path workDirectory, boolean traced) {
+            this.directory = workDirectory.resolve(id);
+            this.traced = traced;
+        }
+        
+        Path input() {
+            return directory.resolve("input.epub");
+        }
+        
+        Path output() {
+            return directory.resolve("output.pdf");
+        }
+        
+        Path trace() {
+            return Trace.pathFor(output().toString());
+        }
+        
+        boolean isFinished() {
+            return status != Status.QUEUED && status != Status.RUNNING;
+        }
+    }
+    
+    private final ConversionOptions options;
+    private final int port;
+    private final Path workDirectory;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService watchdog;
+    private HttpServer httpServer;
+    private ExecutorService requestExecutor;
+    
+    /**
+     * @param options settings applied to every job, including the port, queue size, job timeout,
+     *                upload limit, worker count and per-job memory budget
+     */
+    public ConversionServer(ConversionOptions options) throws IOException {
+        if (options.getPreviousPdf() != null) {
+            throw new IllegalArgumentException("A previous output can only be given for a single book");
+        }
+        this.options = options;
+        this.port = options.getServerPort();
+        this.workDirectory = options.getScratchDirectory() != null
+            ? Files.createTempDirectory(Paths.get(options.getScratchDirectory()), "epub-to-pdf-jobs")
+            : Files.createTempDirectory("epub-to-pdf-jobs");
+        
+        int threads = BatchConverter.effectiveWorkers(options);
+        BatchConverter.applyBookMemory(options);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(options.getJobQueueSize()), runnable -> {
+                Thread thread = new Thread(runnable, "conversion-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "conversion-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Starts accepting requests; returns immediately
+     */
+    public void start() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/jobs", this::handle);
+        requestExecutor = Executors.newFixedThreadPool(REQUEST_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "conversion-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(requestExecutor);
+        httpServer.start();
+        
+        watchdog.scheduleWithFixedDelay(this::removeExpiredJobs, JOB_RETENTION_MINUTES, JOB_RETENTION_MINUTES, TimeUnit.MINUTES);
+        logger.info("Conversion service listening on http://{}:{}/jobs with {} workers and {} queue slots, jobs in {}",
+            InetAddress.getLoopbackAddress().getHostAddress(), httpServer.getAddress().getPort(),
+            workers.getMaximumPoolSize(), options.getJobQueueSize(), workDirectory);
+    }
+    
+    /**
+     * Stops accepting requests, abandons running jobs and deletes the job files
+     */
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(1);
+            requestExecutor.shutdownNow();
+        }
+        workers.shutdownNow();
+        watchdog.shutdownNow();
+        jobs.values().forEach(this::deleteJobFiles);
+        deleteQuietly(workDirectory);
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+            String method = exchange.getRequestMethod();
+            // path is "", "jobs", then the id and the optional "pdf" or "trace"
+            boolean known = path.length >= 2 && path.length <= 4 && "jobs".equals(path[1])
+                && (path.length < 4 || "pdf".equals(path[3]) || "trace".equals(path[3]));
+            if (!known) {
+                sendError(exchange, 404, "Not found");
+            } else if (path.length == 2 && "POST".equals(method)) {
+                submit(exchange);
+            } else if (path.length == 3 && "GET".equals(method)) {
+                sendStatus(exchange, jobs.get(path[2]));
+            } else if (path.length == 4 && "GET".equals(method) && "pdf".equals(path[3])) {
+                sendPdf(exchange, jobs.get(path[2]));
+            } else if (path.length == 4 && "GET".equals(method)) {
+                sendTrace(exchange, jobs.get(path[2]));
+            } else {
+                sendError(exchange, 405, "Method not allowed");
+            }
+        } catch (Exception e) {
+            logger.error("Error handling {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void submit(HttpExchange exchange) throws IOException {
+        long maxUploadBytes = options.getMaxUploadBytes();
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            long length;
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Invalid Content-Length");
+                return;
+            }
+            if (length > maxUploadBytes) {
+                sendError(exchange, 413, "Upload exceeds " + maxUploadBytes + " bytes");
+                return;
+            }
+        }
+        // Refuse before reading the upload if no worker or queue slot is free
+        if (workers.getQueue().remainingCapacity() == 0 && workers.getActiveCount() >= workers.getMaximumPoolSize()) {
+            sendBusy(exchange);
+            return;
+        }
+        
+        Job job = new Job(workDirectory, isTraceRequested(exchange.getRequestURI().getRawQuery()));
+        Files.createDirectory(job.directory);
+        try {
+            if (!receiveUpload(exchange.getRequestBody(), job.input(), maxUploadBytes)) {
+                deleteJobFiles(job);
+                sendError(exchange, 413, "Upload exceeds " + maxUploadBytes + " bytes");
+                return;
+            }
+            
+            jobs.put(job.id, job);
+            job.future = workers.submit(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            deleteJobFiles(job);
+            sendBusy(exchange);
+            return;
+        } catch (IOException e) {
+            jobs.remove(job.id);
+            deleteJobFiles(job);
+            throw e;
+        }
+        
+        logger.info("Queued job {} ({} bytes, {} jobs waiting)", job.id, Files.size(job.input()), workers.getQueue().size());
+        exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+        sendJson(exchange, 202, statusJson(job));
+    }
+    
+    /**
+     * Copies the request body to a file
+     * @return false if the body is longer than the limit
+     */
+    private static boolean receiveUpload(InputStream body, Path file, long maxBytes) throws IOException {
+        try (OutputStream os = Files.newOutputStream(file)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                total += read;
+                if (total > maxBytes) {
+                    return false;
+                }
+                os.write(buffer, 0, read);
+            }
+        }
+        return true;
+    }
+    
+    private void run(Job job) {
+        job.running = true;
+        job.startedAt = System.currentTimeMillis();
+        job.status = Status.RUNNING;
+        long timeoutSeconds = options.getJobTimeoutSeconds();
+        Future<?> timeout = timeoutSeconds > 0
+            ? watchdog.schedule(() -> timeOut(job), timeoutSeconds, TimeUnit.SECONDS)
+            : null;
+        
+        try {
+            EpubToPdfConverter.convertEpubToPdf(job.input().toString(), job.output().toString(), options,
+                job.traced || options.isTrace());
+            finish(job, Status.DONE, null);
+        } catch (Exception | OutOfMemoryError e) {
+            if (job.status == Status.TIMED_OUT) {
+                logger.info("Job {} stopped after timing out", job.id);
+            } else {
+                // The job's memory is unreachable once it has failed, so the service carries on
+                logger.error("Job {} failed", job.id, e);
+                finish(job, Status.FAILED, e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+            }
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            job.running = false;
+        }
+    }
+    
+    /**
+     * Gives up on a job that ran too long and interrupts its worker. Layout cannot be
+     * interrupted, so the worker only stops once the document or segment it is laying out is
+     * finished; until then it keeps its slot, and its result is discarded.
+     */
+    private void timeOut(Job job) {
+        if (finish(job, Status.TIMED_OUT, "Conversion exceeded " + options.getJobTimeoutSeconds() + " seconds")) {
+            logger.warn("Job {} timed out after {} seconds", job.id, options.getJobTimeoutSeconds());
+            Future<?> future = job.future;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Moves a running job to a final state, unless another outcome was recorded first
+     */
+    private boolean finish(Job job, Status status, String error) {
+        synchronized (job) {
+            if (job.isFinished()) {
+                return false;
+            }
+            job.error = error;
+            job.finishedAt = System.currentTimeMillis();
+            job.status = status;
+        }
+        if (status == Status.DONE) {
+            logger.info("Job {} done in {} ms", job.id, job.finishedAt - job.startedAt);
+        }
+        return true;
+    }
+    
+    private void sendStatus(HttpExchange exchange, Job job) throws IOException {
+        if (job == null) {
+            sendError(exchange, 404, "Unknown job");
+            return;
+        }
+        sendJson(exchange, 200, statusJson(job));
+    }
+    
+    private void sendPdf(HttpExchange exchange, Job job) throws IOException {
+        if (job == null) {
+            sendError(exchange, 404, "Unknown job");
+            return;
+        }
+        if (job.status != Status.DONE) {
+            sendError(exchange, 409, "Job is " + job.status.name().toLowerCase());
+            return;
+        }
+        
+        exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+        exchange.sendResponseHeaders(200, Files.size(job.output()));
+        try (OutputStream os = exchange.getResponseBody()) {
+            Files.copy(job.output(), os);
+        }
+    }
+    
+    /**
+     * Sends the trace of a finished job, including a failed one, since that is when it is most useful
+     */
+    private void sendTrace(HttpExchange exchange, Job job) throws IOException {
+        if (job == null) {
+            sendError(exchange, 404, "Unknown job");
+            return;
+        }
+        if (!job.isFinished()) {
+            sendError(exchange, 409, "Job is " + job.status.name().toLowerCase());
+            return;
+        }
+        if (!Files.isRegularFile(job.trace())) {
+            sendError(exchange, 404, "Job was not traced");
+            return;
+        }
+        
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, Files.size(job.trace()));
+        try (OutputStream os = exchange.getResponseBody()) {
+            Files.copy(job.trace(), os);
+        }
+    }
+    
+    private static boolean isTraceRequested(String query) {
+        if (query == null) {
+            return false;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.equals("trace") || parameter.equals("trace=true") || parameter.equals("trace=1")) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private String statusJson(Job job) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"id\":").append(Json.quote(job.id));
+        json.append(",\"status\":").append(Json.quote(job.status.name().toLowerCase()));
+        if (job.status == Status.QUEUED) {
+            json.append(",\"queuedJobs\":").append(workers.getQueue().size());
+        }
+        if (job.startedAt > 0) {
+            json.append(",\"waitMillis\":").append(job.startedAt - job.submittedAt);
+        }
+        if (job.finishedAt > 0) {
+            json.append(",\"runMillis\":").append(job.finishedAt - job.startedAt);
+        }
+        if (job.error != null) {
+            json.append(",\"error\":").append(Json.quote(job.error));
+        }
+        if (job.status == Status.DONE) {
+            json.append(",\"pdf\":").append(Json.quote("/jobs/" + job.id + "/pdf"));
+        }
+        if (job.isFinished() && (job.traced || options.isTrace())) {
+            json.append(",\"trace\":").append(Json.quote("/jobs/" + job.id + "/trace"));
+        }
+        return json.append('}').toString();
+    }
+    
+    private void sendBusy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "5");
+        sendError(exchange, 503, "Job queue is full");
+    }
+    
+    private static void sendError(HttpExchange exchange, int statusCode, String message) throws IOException {
+        sendJson(exchange, statusCode, "{\"error\":" + Json.quote(message) + "}");
+    }
+    
+    private static void sendJson(HttpExchange exchange, int statusCode, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+    
+    /**
+     * Forgets finished jobs older than the retention period and deletes their files. A timed out
+     * job whose worker is still writing to its directory is kept until the worker returns.
+     */
+    private void removeExpiredJobs() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(JOB_RETENTION_MINUTES);
+        jobs.values().removeIf(job -> {
+            boolean expired = job.isFinished() && !job.running && job.finishedAt < cutoff;
+            if (expired) {
+                deleteJobFiles(job);
+            }
+            return expired;
+        });
+    }
+    
+    private void deleteJobFiles(Job job) {
+        deleteQuietly(job.directory);
+    }
+    
+    private static void deleteQuietly(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", directory, e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,149 @@
+package com.epubtopdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debug artifacts of a single conversion, such as the extracted stylesheets and the HTML handed
+ * to the renderer. Diagnostics are off unless a directory is configured; each conversion then
+ * gets its own subdirectory, named after its output, and a cap on the bytes it may write.
+ * Artifacts are written by one background thread shared by all conversions, so converting
+ * threads never wait for the disk. When the writer falls behind, further artifacts are dropped
+ * rather than queued without limit.
+ */
+public class Diagnostics {
+    private static final Logger logger = LoggerFactory.getLogger(Diagnostics.class);
+    
+    /** Diagnostics of every conversion that does not keep them */
+    public static final Diagnostics DISABLED = new Diagnostics(null, 0);
+    
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long SHUTDOWN_WAIT_SECONDS = 30;
+    
+    private static ThreadPoolExecutor writer;
+    
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicLong remainingBytes;
+    private final AtomicBoolean limitReported = new AtomicBoolean();
+    
+    private Diagnostics(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.remainingBytes = new AtomicLong(maxBytes);
+    }
+    
+    /**
+     * Creates a new directory for the diagnostics of one conversion below the base directory
+     * @param maxBytes the most the conversion may write; longer artifacts are truncated and later ones skipped
+     */
+    public static Diagnostics open(String baseDirectory, String outputPath, long maxBytes) throws IOException {
+        Path base = Paths.get(baseDirectory);
+        Files.createDirectories(base);
+        String name = Paths.get(outputPath).getFileName().toString().replaceFirst("(?i)\\.pdf$", "");
+        Path directory = Files.createTempDirectory(base, name + "-");
+        logger.info("Writing diagnostics to {}", directory);
+        return new Diagnostics(directory, maxBytes);
+    }
+    
+    public boolean isEnabled() {
+        return directory != null;
+    }
+    
+    /** Directory of this conversion's artifacts, or null if diagnostics are off */
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    public void write(String name, String content) {
+        if (directory != null) {
+            write(name, content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * Queues an artifact to be written to the conversion's directory. The content must not be
+     * modified afterwards.
+     */
+    public void write(String name, byte[] content) {
+        if (directory == null) {
+            return;
+        }
+        
+        int length = (int) Math.min(content.length, reserve(content.length));
+        if (length < content.length && !limitReported.getAndSet(true)) {
+            logger.warn("Diagnostics of {} reached their limit of {} bytes, truncating {} and skipping later artifacts",
+                directory, maxBytes, name);
+        }
+        if (length <= 0) {
+            return;
+        }
+        
+        Path file = directory.resolve(name.replace('/', '_').replace('\\', '_'));
+        try {
+            writer().execute(() -> {
+                try {
+                    Files.write(file, length == content.length ? content : Arrays.copyOf(content, length));
+                } catch (IOException e) {
+                    logger.warn("Could not write diagnostics artifact {}: {}", file, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            remainingBytes.addAndGet(length);
+            logger.warn("Skipped diagnostics artifact {}: writer is behind", name);
+        }
+    }
+    
+    /**
+     * Takes up to the requested number of bytes from the remaining budget
+     * @return the bytes granted
+     */
+    private long reserve(long bytes) {
+        while (true) {
+            long remaining = remainingBytes.get();
+            long granted = Math.min(bytes, remaining);
+            if (granted <= 0 || remainingBytes.compareAndSet(remaining, remaining - granted)) {
+                return granted;
+            }
+        }
+    }
+    
+    private static synchronized ThreadPoolExecutor writer() {
+        if (writer == null) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                Thread thread = new Thread(runnable, "diagnostics-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Queued artifacts are still written when the JVM exits after the last conversion
+            Runtime.getRuntime().addShutdownHook(new Thread(Diagnostics::awaitWriter, "diagnostics-drain"));
+        }
+        return writer;
+    }
+    
+    private static void awaitWriter() {
+        ThreadPoolExecutor executor;
+        synchronized (Diagnostics.class) {
+            executor = writer;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,555 @@
+package com.epubtopdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Scans an EPUB without rendering it and estimates what converting it will cost, so that a
+ * scheduler can send large books to workers with enough heap. The archive is opened lazily and
+ * each chapter, stylesheet and image is read once and dropped, so the scan itself needs little
+ * memory. Images are measured from their headers without being decoded.
+ * <p>
+ * The peak heap and time are predicted by a linear model of the markup, the images the chapters
+ * show and the render settings. Its coefficients were fitted to a handful of conversions of one
+ * sample book and a six-chapter part of it, in single, segmented, four-thread and downsampled
+ * runs, so books with very different markup or images may stray from it. Those runs had a single
+ * processor; the split of the work across render threads assumes a processor for each.
+ * The predictions are rough estimates meant for sizing workers, not guarantees.
+ */
+public class EpubAnalyzer {
+    private static final Logger logger = LoggerFactory.getLogger(EpubAnalyzer.class);
+    
+    private static final Pattern IMAGE_PATTERN = Pattern.compile(
+        "<(?:img|image)\\b[^>]*?\\s(?:src|xlink:href|href)\\s*=\\s*[\"']([^\"']+)[\"']", Pattern.CASE_INSENSITIVE);
+    
+    /** Selectors with more compound selectors than this are counted as deep */
+    private static final int DEEP_SELECTOR_COMPOUNDS = 3;
+    
+    // Model coefficients, see predict()
+    private static final long BASE_HEAP_BYTES = 48L * 1024 * 1024;
+    private static final long HEAP_BYTES_PER_DECODED_IMAGE_BYTE = 4;
+    private static final long HEAP_BYTES_PER_EMBEDDED_IMAGE_BYTE = 1;
+    private static final long HEAP_BYTES_PER_ELEMENT = 2_700;
+    private static final double BASE_SECONDS = 3.0;
+    private static final double SECONDS_PER_ELEMENT = 0.000_05;
+    private static final double SECONDS_PER_IMAGE_MEGAPIXEL = 0.55;
+    private static final double SECONDS_PER_OPTIMIZED_MEGAPIXEL = 0.19;
+    
+    private final ConversionOptions options;
+    
+    public EpubAnalyzer() {
+        this(new ConversionOptions());
+    }
+    
+    /**
+     * @param options settings the book would be converted with, which decide how much of it is laid out at once
+     */
+    public EpubAnalyzer(ConversionOptions options) {
+        this.options = options;
+    }
+    
+    /**
+     * Size and markup of one chapter
+     */
+    public static class ChapterInfo {
+        private final String href;
+        private final int chars;
+        private final int elements;
+        private final Set<String> imageHrefs;
+        private long imagePixels;
+        
+        ChapterInfo(String href, int chars, int elements, Set<String> imageHrefs) {
+            this.href = href;
+            this.chars = chars;
+            this.elements = elements;
+            this.imageHrefs = imageHrefs;
+        }
+        
+        public String getHref() { return href; }
+        public int getChars() { return chars; }
+        /** Start tags in the markup, a measure of how many boxes layout creates */
+        public int getElements() { return elements; }
+        /** Manifest hrefs of the images the chapter shows */
+        public Set<String> getImageHrefs() { return imageHrefs; }
+        /** Decoded pixels of the chapter's images */
+        public long getImagePixels() { return imagePixels; }
+    }
+    
+    /**
+     * Size and pixel dimensions of one image
+     */
+    public static class ImageInfo {
+        private final String href;
+        private final int bytes;
+        private final int width;
+        private final int height;
+        
+        ImageInfo(String href, int bytes, int width, int height) {
+            this.href = href;
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+        }
+        
+        public String getHref() { return href; }
+        public int getBytes() { return bytes; }
+        /** Width in pixels, or -1 if the format has no pixel size, such as SVG */
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public long getPixels() { return width > 0 && height > 0 ? (long) width * height : 0; }
+    }
+    
+    /**
+     * Rule counts and selector complexity of the book's stylesheets
+     */
+    public static class StylesheetInfo {
+        private int files;
+        private long chars;
+        private int rules;
+        private int uniqueRules;
+        private int atRules;
+        private int fontFaceRules;
+        private int selectors;
+        private long selectorCompounds;
+        private int maxSelectorCompounds;
+        private int deepSelectors;
+        private int universalSelectors;
+        
+        public int getFiles() { return files; }
+        public long getChars() { return chars; }
+        /** Style rules, including those nested in @media and other blocks */
+        public int getRules() { return rules; }
+        /** Style rules left once identical copies across the stylesheets are merged */
+        public int getUniqueRules() { return uniqueRules; }
+        public int getAtRules() { return atRules; }
+        public int getFontFaceRules() { return fontFaceRules; }
+        public int getSelectors() { return selectors; }
+        /** Longest chain of compound selectors joined by combinators */
+        public int getMaxSelectorCompounds() { return maxSelectorCompounds; }
+        public double getMeanSelectorCompounds() { return selectors > 0 ? (double) selectorCompounds / selectors : 0; }
+        /** Selectors with more than three compound selectors, which are slow to match */
+        public int getDeepSelectors() { return deepSelectors; }
+        /** Selectors containing the universal selector */
+        public int getUniversalSelectors() { return universalSelectors; }
+    }
+    
+    /**
+     * An embedded font file
+     */
+    public static class FontInfo {
+        private final String href;
+        private final int bytes;
+        private final String format;
+        
+        FontInfo(String href, int bytes, String format) {
+            this.href = href;
+            this.bytes = bytes;
+            this.format = format;
+        }
+        
+        public String getHref() { return href; }
+        public int getBytes() { return bytes; }
+        /** truetype, opentype, woff, woff2 or unknown, from the file's signature */
+        public String getFormat() { return format; }
+    }
+    
+    /**
+     * Result of scanning one book
+     */
+    public static class Analysis {
+        private final String path;
+        private String title;
+        private final List<ChapterInfo> chapters = new ArrayList<>();
+        private final List<ImageInfo> images = new ArrayList<>();
+        private final StylesheetInfo stylesheets = new StylesheetInfo();
+        private final List<FontInfo> fonts = new ArrayList<>();
+        private final Set<String> declaredFamilies = new TreeSet<>();
+        private final Set<String> referencedFamilies = new TreeSet<>();
+        private boolean segmented;
+        private int concurrentUnits;
+        private long largestUnitElements;
+        private long predictedPeakHeapBytes;
+        private double predictedSeconds;
+        private int contentWidth;
+        
+        Analysis(String path) {
+            this.path = path;
+        }
+        
+        public String getPath() { return path; }
+        public String getTitle() { return title; }
+        public List<ChapterInfo> getChapters() { return chapters; }
+        public List<ImageInfo> getImages() { return images; }
+        public StylesheetInfo getStylesheets() { return stylesheets; }
+        public List<FontInfo> getFonts() { return fonts; }
+        /** Families declared by @font-face rules */
+        public Set<String> getDeclaredFamilies() { return declaredFamilies; }
+        /** Families named by font-family declarations, in lower case */
+        public Set<String> getReferencedFamilies() { return referencedFamilies; }
+        /** Estimated peak heap of the conversion with the analyzer's settings */
+        public long getPredictedPeakHeapBytes() { return predictedPeakHeapBytes; }
+        /** Estimated wall time of the conversion, in seconds */
+        public double getPredictedSeconds() { return predictedSeconds; }
+        
+        public long getChapterChars() {
+            return chapters.stream().mapToLong(ChapterInfo::getChars).sum();
+        }
+        
+        public long getElements() {
+            return chapters.stream().mapToLong(ChapterInfo::getElements).sum();
+        }
+        
+        public long getImageBytes() {
+            return images.stream().mapToLong(ImageInfo::getBytes).sum();
+        }
+        
+        public long getImagePixels() {
+            return images.stream().mapToLong(ImageInfo::getPixels).sum();
+        }
+        
+        /** Images shown by the chapters; the rest of the manifest's images never reach the PDF */
+        public List<ImageInfo> getReferencedImages() {
+            Set<String> referenced = new HashSet<>();
+            chapters.forEach(chapter -> referenced.addAll(chapter.getImageHrefs()));
+            return images.stream().filter(image -> referenced.contains(image.getHref())).collect(Collectors.toList());
+        }
+        
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"path\":").append(Json.quote(path));
+            json.append(",\"title\":").append(Json.quote(title));
+            
+            ChapterInfo largestChapter = chapters.stream().max((a, b) -> Integer.compare(a.getChars(), b.getChars())).orElse(null);
+            json.append(",\"chapters\":{\"count\":").append(chapters.size());
+            json.append(",\"chars\":").append(getChapterChars());
+            json.append(",\"elements\":").append(getElements());
+            if (largestChapter != null) {
+                json.append(",\"largest\":").append(chapterJson(largestChapter));
+            }
+            json.append(",\"items\":[").append(chapters.stream().map(Analysis::chapterJson).collect(Collectors.joining(",")));
+            json.append("]}");
+            
+            ImageInfo largestImage = images.stream().max((a, b) -> Integer.compare(a.getBytes(), b.getBytes())).orElse(null);
+            ImageInfo mostPixels = images.stream().max((a, b) -> Long.compare(a.getPixels(), b.getPixels())).orElse(null);
+            json.append(",\"images\":{\"count\":").append(images.size());
+            json.append(",\"bytes\":").append(getImageBytes());
+            json.append(",\"pixels\":").append(getImagePixels());
+            List<ImageInfo> referenced = getReferencedImages();
+            json.append(",\"referenced\":").append(referenced.size());
+            json.append(",\"referencedBytes\":").append(referenced.stream().mapToLong(ImageInfo::getBytes).sum());
+            json.append(",\"referencedPixels\":").append(referenced.stream().mapToLong(ImageInfo::getPixels).sum());
+            json.append(",\"unmeasured\":").append(images.stream().filter(image -> image.getWidth() < 0).count());
+            if (largestImage != null) {
+                json.append(",\"largestBytes\":").append(imageJson(largestImage));
+                json.append(",\"largestPixels\":").append(imageJson(mostPixels));
+            }
+            json.append('}');
+            
+            json.append(",\"stylesheets\":{\"files\":").append(stylesheets.files);
+            json.append(",\"chars\":").append(stylesheets.chars);
+            json.append(",\"rules\":").append(stylesheets.rules);
+            json.append(",\"uniqueRules\":").append(stylesheets.uniqueRules);
+            json.append(",\"atRules\":").append(stylesheets.atRules);
+            json.append(",\"fontFaceRules\":").append(stylesheets.fontFaceRules);
+            json.append(",\"selectors\":").append(stylesheets.selectors);
+            json.append(",\"maxSelectorCompounds\":").append(stylesheets.maxSelectorCompounds);
+            json.append(",\"meanSelectorCompounds\":").append(String.format(Locale.ROOT, "%.2f", stylesheets.getMeanSelectorCompounds()));
+            json.append(",\"deepSelectors\":").append(stylesheets.deepSelectors);
+            json.append(",\"universalSelectors\":").append(stylesheets.universalSelectors);
+            json.append('}');
+            
+            json.append(",\"fonts\":{\"embedded\":[");
+            json.append(fonts.stream().map(font -> "{\"href\":" + Json.quote(font.getHref()) + ",\"bytes\":" + font.getBytes()
+                + ",\"format\":" + Json.quote(font.getFormat()) + "}").collect(Collectors.joining(",")));
+            json.append("],\"declaredFamilies\":").append(stringArray(declaredFamilies));
+            json.append(",\"referencedFamilies\":").append(stringArray(referencedFamilies));
+            json.append('}');
+            
+            json.append(",\"prediction\":{\"segmented\":").append(segmented);
+            json.append(",\"concurrentUnits\":").append(concurrentUnits);
+            json.append(",\"largestUnitElements\":").append(largestUnitElements);
+            json.append(",\"peakHeapBytes\":").append(predictedPeakHeapBytes);
+            json.append(",\"seconds\":").append(String.format(Locale.ROOT, "%.1f", predictedSeconds));
+            json.append("}}");
+            return json.toString();
+        }
+        
+        private static String chapterJson(ChapterInfo chapter) {
+            return "{\"href\":" + Json.quote(chapter.getHref()) + ",\"chars\":" + chapter.getChars()
+                + ",\"elements\":" + chapter.getElements() + ",\"images\":" + chapter.getImageHrefs().size()
+                + ",\"imagePixels\":" + chapter.getImagePixels() + "}";
+        }
+        
+        private static String imageJson(ImageInfo image) {
+            return "{\"href\":" + Json.quote(image.getHref()) + ",\"bytes\":" + image.getBytes()
+                + ",\"width\":" + image.getWidth() + ",\"height\":" + image.getHeight() + "}";
+        }
+        
+        private static String stringArray(Set<String> values) {
+            return values.stream().map(Json::quote).collect(Collectors.joining(",", "[", "]"));
+        }
+    }
+    
+    /**
+     * Scans a book and predicts the cost of converting it
+     */
+    public Analysis analyze(String epubPath) throws IOException {
+        Analysis analysis = new Analysis(epubPath);
+        try (EpubReader.EpubBook book = new EpubReader(options).openEpub(epubPath)) {
+            analysis.title = book.getMetadata().getTitle();
+            for (EpubReader.Chapter chapter : book.getChapters()) {
+                analysis.chapters.add(analyzeChapter(chapter));
+            }
+            Map<String, ImageInfo> images = new HashMap<>();
+            for (Map.Entry<String, byte[]> image : book.getImages().entrySet()) {
+                ImageInfo info = analyzeImage(image.getKey(), image.getValue());
+                analysis.images.add(info);
+                images.put(info.getHref(), info);
+            }
+            for (ChapterInfo chapter : analysis.chapters) {
+                chapter.imagePixels = chapter.getImageHrefs().stream().map(images::get)
+                    .mapToLong(image -> image != null ? image.getPixels() : 0).sum();
+            }
+            analyzeStylesheets(book.getCssFiles(), analysis);
+            analysis.contentWidth = PdfCreator.pageContentWidth(PdfCreator.getBaseCSS()
+                + String.join("\n", book.getCssFiles().values()));
+            for (Map.Entry<String, byte[]> font : book.getFonts().entrySet()) {
+                analysis.fonts.add(new FontInfo(font.getKey(), font.getValue().length, fontFormat(font.getValue())));
+            }
+        }
+        
+        predict(analysis);
+        logger.info("Analyzed {}: {} chapters, {} elements, {} images ({} KB), predicted peak heap {} MB, {} s",
+            epubPath, analysis.chapters.size(), analysis.getElements(), analysis.images.size(), analysis.getImageBytes() / 1024,
+            analysis.predictedPeakHeapBytes / (1024 * 1024), String.format(Locale.ROOT, "%.1f", analysis.predictedSeconds));
+        return analysis;
+    }
+    
+    private static ChapterInfo analyzeChapter(EpubReader.Chapter chapter) {
+        String html = chapter.getHtmlContent();
+        if (html == null) {
+            return new ChapterInfo(chapter.getHref(), 0, 0, new LinkedHashSet<>());
+        }
+        
+        // Start tags are counted from the raw markup, which is much cheaper than parsing it
+        int elements = 0;
+        for (int i = html.indexOf('<'); i >= 0 && i + 1 < html.length(); i = html.indexOf('<', i + 1)) {
+            if (Character.isLetter(html.charAt(i + 1))) {
+                elements++;
+            }
+        }
+        Set<String> imageHrefs = new LinkedHashSet<>();
+        Matcher matcher = IMAGE_PATTERN.matcher(html);
+        while (matcher.find()) {
+            String href = EpubArchive.resolveHref(chapter.getHref(), matcher.group(1));
+            if (href != null) {
+                imageHrefs.add(href);
+            }
+        }
+        return new ChapterInfo(chapter.getHref(), html.length(), elements, imageHrefs);
+    }
+    
+    /**
+     * Reads an image's pixel size from its header without decoding it
+     */
+    private static ImageInfo analyzeImage(String href, byte[] data) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    return new ImageInfo(href, data.length, reader.getWidth(0), reader.getHeight(0));
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not read the size of image {}: {}", href, e.getMessage());
+        }
+        return new ImageInfo(href, data.length, -1, -1);
+    }
+    
+    private static void analyzeStylesheets(Map<String, String> cssFiles, Analysis analysis) {
+        StylesheetInfo info = analysis.stylesheets;
+        Set<String> uniqueRules = new HashSet<>();
+        for (Map.Entry<String, String> css : cssFiles.entrySet()) {
+            info.files++;
+            info.chars += css.getValue().length();
+            analyzeStatements(StylesheetCompiler.splitStatements(css.getValue()), info, uniqueRules, analysis.declaredFamilies);
+            FontRegistry.collectFamilies(css.getValue(), analysis.referencedFamilies);
+        }
+        info.uniqueRules = uniqueRules.size();
+    }
+    
+    private static void analyzeStatements(List<String> statements, StylesheetInfo info, Set<String> uniqueRules,
+                                          Set<String> declaredFamilies) {
+        for (String statement : statements) {
+            int open = statement.indexOf('{');
+            if (!statement.startsWith("@")) {
+                if (open > 0) {
+                    info.rules++;
+                    uniqueRules.add(statement);
+                    analyzeSelectors(statement.substring(0, open), info);
+                }
+                continue;
+            }
+            
+            info.atRules++;
+            if (statement.regionMatches(true, 0, "@font-face", 0, "@font-face".length())) {
+                info.fontFaceRules++;
+                String family = FontRegistry.parseDescriptors(statement).get("font-family");
+                if (family != null) {
+                    declaredFamilies.add(FontRegistry.unquote(family));
+                }
+            } else if (open > 0 && statement.endsWith("}")) {
+                // Conditional group rules such as @media and @supports hold rules of their own
+                analyzeStatements(StylesheetCompiler.splitStatements(statement.substring(open + 1, statement.length() - 1)),
+                    info, uniqueRules, declaredFamilies);
+            }
+        }
+    }
+    
+    private static void analyzeSelectors(String selectorList, StylesheetInfo info) {
+        for (String selector : selectorList.split(",")) {
+            String trimmed = selector.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            // Combinators separate compound selectors; spacing around them was collapsed by splitStatements
+            int compounds = trimmed.replaceAll("\\s*[>+~]\\s*", " ").split(" ").length;
+            info.selectors++;
+            info.selectorCompounds += compounds;
+            info.maxSelectorCompounds = Math.max(info.maxSelectorCompounds, compounds);
+            if (compounds > DEEP_SELECTOR_COMPOUNDS) {
+                info.deepSelectors++;
+            }
+            if (trimmed.contains("*")) {
+                info.universalSelectors++;
+            }
+        }
+    }
+    
+    private static String fontFormat(byte[] data) {
+        if (data.length < 4) {
+            return "unknown";
+        }
+        int signature = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        switch (signature) {
+            case 0x00010000:
+            case 0x74727565: // 'true'
+                return "truetype";
+            case 0x4F54544F: // 'OTTO'
+                return "opentype";
+            case 0x774F4646: // 'wOFF'
+                return "woff";
+            case 0x774F4632: // 'wOF2'
+                return "woff2";
+            default:
+                return "unknown";
+        }
+    }
+    
+    /**
+     * Estimates the peak heap and time of the conversion. The images shown by the book stay on
+     * the heap as decoded buffers until the document is saved, whatever the render mode, and as
+     * PDF streams up to the PDFBox limit of each open document, beyond which they spill to scratch
+     * files. Layout holds the boxes of one document at a time per render thread, so the rest of
+     * the heap follows the largest documents laid out at once: the whole book in single mode,
+     * otherwise the largest groups of chapters, one per render thread.
+     * <p>
+     * Laying out and embedding a document's markup and images takes most of the time. Segments
+     * are spread over the render threads, so that part takes the larger of an even share of the
+     * work and the largest segment. With a target DPI, images are sized and counted at the width
+     * they are downsampled to, assuming they fill the page width, and decoding and recompressing
+     * them first adds time of its own.
+     */
+    private void predict(Analysis analysis) {
+        analysis.segmented = options.isSegmentedRendering() || options.getRenderThreads() > 1
+            || options.getCacheDirectory() != null || options.isIncremental();
+        
+        int dpi = options.getImageDpi();
+        int targetWidth = ImageOptimizer.targetWidth(analysis.contentWidth, dpi);
+        Map<String, ImageInfo> images = new HashMap<>();
+        analysis.images.forEach(image -> images.put(image.getHref(), image));
+        
+        List<Long> unitElements = new ArrayList<>();
+        List<Double> unitSeconds = new ArrayList<>();
+        List<ChapterInfo> chapters = analysis.chapters;
+        int perSegment = analysis.segmented ? Math.max(1, options.getChaptersPerSegment()) : Math.max(1, chapters.size());
+        for (int start = 0; start < chapters.size(); start += perSegment) {
+            List<ChapterInfo> unit = chapters.subList(start, Math.min(start + perSegment, chapters.size()));
+            long elements = unit.stream().mapToLong(ChapterInfo::getElements).sum();
+            long pixels = unit.stream().flatMap(chapter -> chapter.getImageHrefs().stream()).distinct()
+                .map(images::get).filter(image -> image != null)
+                .mapToLong(image -> embeddedPixels(image, dpi, targetWidth)).sum();
+            unitElements.add(elements);
+            unitSeconds.add(elements * SECONDS_PER_ELEMENT + pixels / 1_000_000.0 * SECONDS_PER_IMAGE_MEGAPIXEL);
+        }
+        unitElements.sort(Collections.reverseOrder());
+        analysis.concurrentUnits = analysis.segmented ? Math.min(options.getRenderThreads(), unitElements.size()) : 1;
+        analysis.largestUnitElements = unitElements.isEmpty() ? 0 : unitElements.get(0);
+        
+        List<ImageInfo> referenced = analysis.getReferencedImages();
+        long imageBytes = referenced.stream().mapToLong(image -> embeddedBytes(image, dpi, targetWidth)).sum();
+        long embeddedImageBytes = imageBytes * HEAP_BYTES_PER_EMBEDDED_IMAGE_BYTE;
+        long maxMainMemory = BatchConverter.maxMainMemoryBytes(options);
+        if (maxMainMemory >= 0) {
+            embeddedImageBytes = Math.min(embeddedImageBytes, maxMainMemory * BatchConverter.openDocuments(options));
+        }
+        
+        long layoutElements = unitElements.stream().limit(analysis.concurrentUnits).mapToLong(Long::longValue).sum();
+        analysis.predictedPeakHeapBytes = BASE_HEAP_BYTES + imageBytes * HEAP_BYTES_PER_DECODED_IMAGE_BYTE
+            + embeddedImageBytes + layoutElements * HEAP_BYTES_PER_ELEMENT;
+        
+        double renderSeconds = unitSeconds.stream().mapToDouble(Double::doubleValue).sum();
+        double largestUnitSeconds = unitSeconds.stream().mapToDouble(Double::doubleValue).max().orElse(0);
+        double optimizeSeconds = dpi > 0
+            ? referenced.stream().mapToLong(ImageInfo::getPixels).sum() / 1_000_000.0 * SECONDS_PER_OPTIMIZED_MEGAPIXEL
+            : 0;
+        analysis.predictedSeconds = BASE_SECONDS + optimizeSeconds
+            + Math.max(renderSeconds / Math.max(1, analysis.concurrentUnits), largestUnitSeconds);
+    }
+    
+    /**
+     * Returns the pixels of an image as embedded, after downsampling when a target DPI is set
+     */
+    private static long embeddedPixels(ImageInfo image, int dpi, int targetWidth) {
+        if (dpi <= 0 || image.getWidth() <= targetWidth) {
+            return image.getPixels();
+        }
+        long targetHeight = Math.max(1, Math.round((double) image.getHeight() * targetWidth / image.getWidth()));
+        return targetWidth * targetHeight;
+    }
+    
+    /**
+     * Returns the bytes of an image as embedded, assuming downsampling shrinks them with the pixel count
+     */
+    private static long embeddedBytes(ImageInfo image, int dpi, int targetWidth) {
+        long pixels = image.getPixels();
+        if (pixels == 0) {
+            return image.getBytes();
+        }
+        return Math.round((double) image.getBytes() * embeddedPixels(image, dpi, targetWidth) / pixels);
+    }
+}
@@ -0,0 +1,111 @@
+package com.epubtopdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps an EPUB archive open and resolves manifest hrefs against it on demand.
+ * Used by lazily loaded books so that content is only inflated when it is rendered.
+ */
+public class EpubArchive implements Closeable {
+    private final ZipFile zipFile;
+    private final String basePath;
+    
+    /**
+     * @param zipFile the open EPUB archive; ownership passes to this object
+     * @param basePath directory of the OPF file inside the archive (empty or ending in '/')
+     */
+    public EpubArchive(ZipFile zipFile, String basePath) {
+        this.zipFile = zipFile;
+        this.basePath = basePath;
+    }
+    
+    public String getBasePath() {
+        return basePath;
+    }
+    
+    /**
+     * Returns true if the archive has an entry for the given manifest href
+     */
+    public boolean contains(String href) {
+        return zipFile.getEntry(basePath + href) != null;
+    }
+    
+    /**
+     * Reads the raw bytes of a manifest href, or returns null if the entry is missing
+     */
+    public byte[] readBytes(String href) throws IOException {
+        ZipEntry entry = zipFile.getEntry(basePath + href);
+        if (entry == null) {
+            return null;
+        }
+        
+        ConversionMetrics.recordRead(entry.getCompressedSize());
+        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+            return inputStream.readAllBytes();
+        }
+    }
+    
+    /**
+     * Reads a manifest href as UTF-8 text, or returns null if the entry is missing
+     */
+    public String readText(String href) throws IOException {
+        byte[] bytes = readBytes(href);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+    
+    /**
+     * Resolves a reference found in a content document against that document's manifest href.
+     * Fragments and queries are dropped.
+     * @return the referenced manifest href, or null for absolute URIs and references that leave the package
+     */
+    public static String resolveHref(String documentHref, String reference) {
+        if (reference == null || reference.isEmpty() || reference.contains(":")) {
+            return null;
+        }
+        
+        int end = reference.length();
+        int fragment = reference.indexOf('#');
+        int query = reference.indexOf('?');
+        if (fragment != -1) {
+            end = fragment;
+        }
+        if (query != -1 && query < end) {
+            end = query;
+        }
+        String path = reference.substring(0, end);
+        
+        String directory = "";
+        if (documentHref != null && !path.startsWith("/")) {
+            directory = documentHref.substring(0, documentHref.lastIndexOf('/') + 1);
+        }
+        
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : (directory + path).split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.removeLast();
+            } else {
+                segments.addLast(segment);
+            }
+        }
+        
+        return String.join("/", segments);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,210 @@
+package com.epubtopdf;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The manifest and spine of an OPF package document, indexed once per book. Items can be
+ * looked up by id, href and media type without rescanning the OPF, so package handling stays
+ * linear in the number of manifest items.
+ */
+public class EpubPackage {
+    
+    /**
+     * A manifest item
+     */
+    public static class Item {
+        private final String id;
+        private final String href;
+        private final String mediaType;
+        private final Set<String> properties;
+        
+        public Item(String id, String href, String mediaType, Set<String> properties) {
+            this.id = id;
+            this.href = href;
+            this.mediaType = mediaType;
+            this.properties = properties;
+        }
+        
+        public String getId() { return id; }
+        public String getHref() { return href; }
+        public String getMediaType() { return mediaType; }
+        public Set<String> getProperties() { return properties; }
+        
+        public boolean hasProperty(String property) {
+            return properties.contains(property);
+        }
+        
+        public boolean isXhtml() {
+            return mediaType.contains("xhtml");
+        }
+        
+        public boolean isImage() {
+            return mediaType.startsWith("image/");
+        }
+        
+        public boolean isStylesheet() {
+            return "text/css".equals(mediaType);
+        }
+        
+        /**
+         * Whether the item is a TrueType, OpenType or WOFF font. Font media types were only
+         * standardized in EPUB 3.2, so the older variants and the file extension count too.
+         */
+        public boolean isFont() {
+            String type = mediaType.toLowerCase();
+            String name = href.toLowerCase();
+            return type.startsWith("font/") || type.contains("font-") || type.contains("opentype") || type.contains("truetype")
+                || name.endsWith(".ttf") || name.endsWith(".otf") || name.endsWith(".woff");
+        }
+    }
+    
+    private final String basePath;
+    private final Map<String, Item> itemsById = new HashMap<>();
+    private final Map<String, Item> itemsByHref = new LinkedHashMap<>();
+    private final Map<String, List<Item>> itemsByMediaType = new LinkedHashMap<>();
+    private final List<Item> images = new ArrayList<>();
+    private final List<Item> fonts = new ArrayList<>();
+    private final List<Item> spine = new ArrayList<>();
+    private Item navigation;
+    
+    private EpubPackage(String basePath) {
+        this.basePath = basePath;
+    }
+    
+    /**
+     * Indexes the manifest and spine of a parsed OPF document
+     * @param opfPath path of the OPF file inside the archive; manifest hrefs are relative to its directory
+     */
+    public static EpubPackage parse(Document opfDoc, String opfPath) {
+        EpubPackage epubPackage = new EpubPackage(opfPath.substring(0, opfPath.lastIndexOf('/') + 1));
+        
+        Element rootElement = opfDoc.getDocumentElement();
+        NodeList manifestNodes = rootElement.getElementsByTagName("manifest");
+        if (manifestNodes.getLength() > 0) {
+            NodeList items = ((Element) manifestNodes.item(0)).getElementsByTagName("item");
+            for (int i = 0; i < items.getLength(); i++) {
+                epubPackage.addItem((Element) items.item(i));
+            }
+        }
+        
+        NodeList spineNodes = rootElement.getElementsByTagName("spine");
+        if (spineNodes.getLength() > 0) {
+            Element spineElement = (Element) spineNodes.item(0);
+            NodeList itemrefs = spineElement.getElementsByTagName("itemref");
+            for (int i = 0; i < itemrefs.getLength(); i++) {
+                Item item = epubPackage.itemsById.get(((Element) itemrefs.item(i)).getAttribute("idref"));
+                if (item != null) {
+                    epubPackage.spine.add(item);
+                }
+            }
+            
+            // EPUB 2 books point at their NCX from the spine instead of a nav document
+            if (epubPackage.navigation == null) {
+                epubPackage.navigation = epubPackage.itemsById.get(spineElement.getAttribute("toc"));
+            }
+        }
+        
+        return epubPackage;
+    }
+    
+    private void addItem(Element element) {
+        String properties = element.getAttribute("properties").trim();
+        Item item = new Item(element.getAttribute("id"), element.getAttribute("href"), element.getAttribute("media-type"),
+            properties.isEmpty() ? Collections.emptySet() : new LinkedHashSet<>(Arrays.asList(properties.split("\\s+"))));
+        
+        itemsById.putIfAbsent(item.getId(), item);
+        itemsByHref.putIfAbsent(item.getHref(), item);
+        itemsByMediaType.computeIfAbsent(item.getMediaType(), type -> new ArrayList<>()).add(item);
+        if (item.isImage()) {
+            images.add(item);
+        } else if (item.isFont()) {
+            fonts.add(item);
+        }
+        if (navigation == null && item.hasProperty("nav")) {
+            navigation = item;
+        }
+    }
+    
+    /**
+     * Directory of the OPF file inside the archive, empty or ending in '/'
+     */
+    public String getBasePath() {
+        return basePath;
+    }
+    
+    /**
+     * Returns the manifest item with the given id, or null
+     */
+    public Item getItem(String id) {
+        return itemsById.get(id);
+    }
+    
+    /**
+     * Returns the manifest item with the given href, or null
+     */
+    public Item getItemByHref(String href) {
+        return itemsByHref.get(href);
+    }
+    
+    /**
+     * Returns all manifest items in document order
+     */
+    public Collection<Item> getItems() {
+        return Collections.unmodifiableCollection(itemsByHref.values());
+    }
+    
+    /**
+     * Returns the manifest items with exactly the given media type, in document order
+     */
+    public List<Item> getItemsByMediaType(String mediaType) {
+        return Collections.unmodifiableList(itemsByMediaType.getOrDefault(mediaType, Collections.emptyList()));
+    }
+    
+    /**
+     * Returns the manifest items of any image media type, in document order
+     */
+    public List<Item> getImages() {
+        return Collections.unmodifiableList(images);
+    }
+    
+    /**
+     * Returns the manifest items of embedded fonts, in document order
+     */
+    public List<Item> getFonts() {
+        return Collections.unmodifiableList(fonts);
+    }
+    
+    /**
+     * Returns the manifest items of the stylesheets, in document order
+     */
+    public List<Item> getStylesheets() {
+        return getItemsByMediaType("text/css");
+    }
+    
+    /**
+     * Returns the spine items in reading order
+     */
+    public List<Item> getSpine() {
+        return Collections.unmodifiableList(spine);
+    }
+    
+    /**
+     * Returns the EPUB 3 navigation document or the EPUB 2 NCX, or null if the book has neither
+     */
+    public Item getNavigation() {
+        return navigation;
+    }
+}
\ No newline at end of file
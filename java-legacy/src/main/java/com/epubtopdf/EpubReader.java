@@ -11,6 +11,11 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -20,6 +25,30 @@ import java.util.zip.ZipFile;
 public class EpubReader {
     private static final Logger logger = LoggerFactory.getLogger(EpubReader.class);
     
+    private final int chapterParallelism;
+    private final boolean sequentialExtraction;
+    private final ConversionMetrics metrics;
+    private final Trace trace;
+    
+    public EpubReader() {
+        this(new ConversionOptions());
+    }
+    
+    public EpubReader(ConversionOptions options) {
+        this(options, new ConversionMetrics());
+    }
+    
+    /**
+     * Creates a reader that records the time and archive reads of each stage in the given metrics,
+     * and traces each resource it reads to the metrics' trace
+     */
+    public EpubReader(ConversionOptions options, ConversionMetrics metrics) {
+        this.chapterParallelism = options.getChapterParallelism();
+        this.sequentialExtraction = options.isSequentialExtraction();
+        this.metrics = metrics;
+        this.trace = metrics.getTrace();
+    }
+    
     /**
      * Represents a chapter or section in the EPUB
      */
@@ -27,24 +56,107 @@ public class EpubReader {
         private String title;
         private String content;
         private String htmlContent;
+        private String href;
+        private List<String> stylesheets;
+        private String characters;
+        private EpubArchive archive;
         
         public Chapter(String title, String content, String htmlContent) {
+            this(title, content, htmlContent, null);
+        }
+        
+        public Chapter(String title, String content, String htmlContent, String href) {
+            this(title, content, htmlContent, href, Collections.emptyList());
+        }
+        
+        public Chapter(String title, String content, String htmlContent, String href, List<String> stylesheets) {
             this.title = title;
             this.content = content;
             this.htmlContent = htmlContent;
+            this.href = href;
+            this.stylesheets = stylesheets;
+        }
+        
+        /**
+         * Creates a lazily loaded chapter whose markup is read from the archive on each access
+         */
+        Chapter(String href, EpubArchive archive) {
+            this.href = href;
+            this.archive = archive;
         }
         
         public String getTitle() {
+            loadLazyHead();
             return title;
         }
         
+        /**
+         * Returns the manifest hrefs of the stylesheets the chapter links to, in document order
+         */
+        public List<String> getStylesheets() {
+            loadLazyHead();
+            return stylesheets;
+        }
+        
         public String getContent() {
+            if (archive != null) {
+                org.jsoup.nodes.Document doc = parseLazyContent();
+                return doc != null ? extractText(doc) : "";
+            }
             return content;
         }
         
         public String getHtmlContent() {
+            if (archive != null) {
+                try {
+                    return archive.readText(href);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error reading chapter: " + href, e);
+                }
+            }
             return htmlContent;
         }
+        
+        /**
+         * Returns each distinct character of the chapter's title and text once, for font
+         * subsetting. A lazy chapter collects them in the same parse as its title, so they cost
+         * no extra read of its markup.
+         */
+        public synchronized String getCharacters() {
+            if (archive != null) {
+                loadLazyHead();
+            } else if (characters == null) {
+                characters = distinctCharacters((title != null ? title : "") + (content != null ? content : ""));
+            }
+            return characters;
+        }
+        
+        /**
+         * Returns the manifest href of the chapter, or null if unknown
+         */
+        public String getHref() {
+            return href;
+        }
+        
+        /**
+         * Parses the title, stylesheets and characters of a lazy chapter on first use. Segments
+         * rendered in parallel can ask for the same chapter at once, so this is synchronized; it
+         * also makes the fields visible to every thread that has called it.
+         */
+        private synchronized void loadLazyHead() {
+            if (title == null && archive != null) {
+                // Only the title, stylesheets and characters are cached; the markup and text are re-read so they can be collected
+                org.jsoup.nodes.Document doc = parseLazyContent();
+                stylesheets = doc != null ? extractStylesheets(doc, href) : Collections.emptyList();
+                title = doc != null ? extractTitle(doc, href) : href;
+                characters = distinctCharacters((title != null ? title : "") + (doc != null ? extractText(doc) : ""));
+            }
+        }
+        
+        private org.jsoup.nodes.Document parseLazyContent() {
+            String html = getHtmlContent();
+            return html != null ? org.jsoup.Jsoup.parse(html) : null;
+        }
     }
     
     /**
@@ -74,129 +186,257 @@ public class EpubReader {
     }
     
     /**
-     * Represents the complete EPUB book
+     * Represents the complete EPUB book.
+     * Lazily loaded books keep their archive open and must be closed once rendering is done.
      */
-    public static class EpubBook {
+    public static class EpubBook implements Closeable {
         private EpubMetadata metadata;
         private List<Chapter> chapters;
         private Map<String, String> cssFiles;
         private Map<String, byte[]> images;
+        private Map<String, byte[]> fonts;
+        private EpubArchive archive;
         
         public EpubBook(EpubMetadata metadata, List<Chapter> chapters, Map<String, String> cssFiles, Map<String, byte[]> images) {
+            this(metadata, chapters, cssFiles, images, Collections.emptyMap());
+        }
+        
+        public EpubBook(EpubMetadata metadata, List<Chapter> chapters, Map<String, String> cssFiles, Map<String, byte[]> images,
+                        Map<String, byte[]> fonts) {
+            this(metadata, chapters, cssFiles, images, fonts, null);
+        }
+        
+        EpubBook(EpubMetadata metadata, List<Chapter> chapters, Map<String, String> cssFiles, Map<String, byte[]> images,
+                 Map<String, byte[]> fonts, EpubArchive archive) {
             this.metadata = metadata;
             this.chapters = chapters;
             this.cssFiles = cssFiles;
             this.images = images;
+            this.fonts = fonts;
+            this.archive = archive;
         }
         
         public EpubMetadata getMetadata() { return metadata; }
         public List<Chapter> getChapters() { return chapters; }
         public Map<String, String> getCssFiles() { return cssFiles; }
         public Map<String, byte[]> getImages() { return images; }
+        public Map<String, byte[]> getFonts() { return fonts; }
+        public boolean isLazy() { return archive != null; }
+        
+        @Override
+        public void close() throws IOException {
+            if (archive != null) {
+                archive.close();
+            }
+        }
+    }
+    
+    /**
+     * Read-only map view over archive entries. Keys come from the manifest; values are
+     * read from the archive on every lookup so that nothing is retained on-heap.
+     */
+    private static class ArchiveResourceMap<V> extends AbstractMap<String, V> {
+        interface EntryReader<V> {
+            V read(String href) throws IOException;
+        }
+        
+        private final Set<String> hrefs;
+        private final EntryReader<V> reader;
+        
+        ArchiveResourceMap(Set<String> hrefs, EntryReader<V> reader) {
+            this.hrefs = Collections.unmodifiableSet(hrefs);
+            this.reader = reader;
+        }
+        
+        @Override
+        public V get(Object key) {
+            if (!hrefs.contains(key)) {
+                return null;
+            }
+            try {
+                return reader.read((String) key);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading EPUB resource: " + key, e);
+            }
+        }
+        
+        @Override
+        public boolean containsKey(Object key) {
+            return hrefs.contains(key);
+        }
+        
+        @Override
+        public Set<String> keySet() {
+            return hrefs;
+        }
+        
+        @Override
+        public int size() {
+            return hrefs.size();
+        }
+        
+        @Override
+        public Set<Entry<String, V>> entrySet() {
+            return new AbstractSet<Entry<String, V>>() {
+                @Override
+                public Iterator<Entry<String, V>> iterator() {
+                    Iterator<String> keys = hrefs.iterator();
+                    return new Iterator<Entry<String, V>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+                        
+                        @Override
+                        public Entry<String, V> next() {
+                            String href = keys.next();
+                            return new SimpleImmutableEntry<>(href, get(href));
+                        }
+                    };
+                }
+                
+                @Override
+                public int size() {
+                    return hrefs.size();
+                }
+            };
+        }
     }
     
     /**
      * Reads an EPUB file and returns its content
      */
     public EpubBook readEpub(String epubPath) throws IOException {
-        System.out.println("DEBUG: readEpub called with path: " + epubPath);
-        logger.info("Starting readEpub for path: {}", epubPath);
+        logger.info("Reading EPUB: {}", epubPath);
         
-        try (ZipFile zipFile = new ZipFile(epubPath)) {
-            System.out.println("DEBUG: ZipFile created successfully");
-            logger.info("ZipFile created successfully");
+        try (ZipFile zipFile = metrics.measure(ConversionMetrics.ZIP_OPEN, () -> new ZipFile(epubPath))) {
+            logger.debug("Opened archive with {} entries", zipFile.size());
             
             // Find the OPF file (contains metadata and manifest)
-            String opfPath = findOpfFile(zipFile);
-            System.out.println("DEBUG: Found OPF path: " + opfPath);
-            logger.info("Found OPF path: {}", opfPath);
-            
+            String opfPath = metrics.measure(ConversionMetrics.OPF_PARSE, () -> findOpfFile(zipFile));
             if (opfPath == null) {
                 throw new IOException("Could not find OPF file in EPUB");
             }
             
             // Parse the OPF file
-            System.out.println("DEBUG: Getting OPF entry from zip...");
-            logger.info("Getting OPF entry from zip...");
             ZipEntry opfEntry = zipFile.getEntry(opfPath);
-            System.out.println("DEBUG: OPF entry found: " + (opfEntry != null));
-            logger.info("OPF entry found: {}", opfEntry != null);
-            
-            System.out.println("DEBUG: Parsing OPF document...");
-            logger.info("Parsing OPF document...");
-            Document opfDoc = parseXmlFromZip(zipFile, opfEntry);
-            System.out.println("DEBUG: OPF document parsed successfully");
-            logger.info("OPF document parsed successfully");
+            Document opfDoc = metrics.measure(ConversionMetrics.OPF_PARSE, () -> parseXmlFromZip(zipFile, opfEntry));
+            EpubPackage epubPackage = metrics.measure(ConversionMetrics.OPF_PARSE, () -> EpubPackage.parse(opfDoc, opfPath));
             
             // Extract metadata
-            System.out.println("DEBUG: Extracting metadata...");
-            logger.info("Extracting metadata...");
             EpubMetadata metadata = extractMetadata(opfDoc);
-            System.out.println("DEBUG: Metadata extracted - title: " + metadata.getTitle());
-            logger.info("Metadata extracted - title: {}", metadata.getTitle());
+            logger.debug("Parsed package document {} - title: {}", opfPath, metadata.getTitle());
+            if (trace.isEnabled()) {
+                trace.event("package", "opf", opfPath, "title", metadata.getTitle(), "spineItems", epubPackage.getSpine().size());
+            }
             
-            // Extract chapters
-            System.out.println("DEBUG: Extracting chapters...");
-            logger.info("Extracting chapters...");
-            List<Chapter> chapters = extractChapters(zipFile, opfDoc, opfPath);
-            System.out.println("DEBUG: Chapters extracted: " + chapters.size());
-            logger.info("Chapters extracted: {}", chapters.size());
+            if (sequentialExtraction) {
+                logger.debug("Extracting chapters, CSS files and images in archive order");
+                Map<String, String> cssFiles = new HashMap<>();
+                Map<String, byte[]> images = new HashMap<>();
+                Map<String, byte[]> fonts = new HashMap<>();
+                List<Chapter> chapters = metrics.measure(ConversionMetrics.ARCHIVE_PASS,
+                    () -> extractInArchiveOrder(zipFile, epubPackage, cssFiles, images, fonts));
+                logger.info("Read EpubBook - title: {}, chapters: {}, cssFiles: {}, images: {}, fonts: {}",
+                           metadata.getTitle(), chapters.size(), cssFiles.size(), images.size(), fonts.size());
+                return new EpubBook(metadata, chapters, cssFiles, images, fonts);
+            }
             
-            // Extract CSS files
-            System.out.println("DEBUG: Extracting CSS files...");
-            logger.info("Extracting CSS files...");
-            Map<String, String> cssFiles = extractCssFiles(zipFile, opfDoc, opfPath);
-            System.out.println("DEBUG: CSS files extracted: " + cssFiles.size());
-            logger.info("CSS files extracted: {}", cssFiles.size());
+            List<Chapter> chapters = metrics.measure(ConversionMetrics.CHAPTERS, () -> extractChapters(zipFile, epubPackage));
+            Map<String, String> cssFiles = metrics.measure(ConversionMetrics.CSS, () -> extractCssFiles(zipFile, epubPackage));
+            Map<String, byte[]> images = metrics.measure(ConversionMetrics.IMAGES, () -> extractImages(zipFile, epubPackage));
+            Map<String, byte[]> fonts = metrics.measure(ConversionMetrics.FONTS, () -> extractFonts(zipFile, epubPackage));
             
-            // Extract images
-            System.out.println("DEBUG: Extracting images...");
-            logger.info("Extracting images...");
-            Map<String, byte[]> images = extractImages(zipFile, opfDoc, opfPath);
-            System.out.println("DEBUG: Images extracted: " + images.size());
-            logger.info("Images extracted: {}", images.size());
+            logger.info("Read EpubBook - title: {}, chapters: {}, cssFiles: {}, images: {}, fonts: {}",
+                       metadata.getTitle(), chapters.size(), cssFiles.size(), images.size(), fonts.size());
             
-            System.out.println("DEBUG: Creating EpubBook - metadata: " + metadata.getTitle() + ", chapters: " + chapters.size() + ", cssFiles: " + cssFiles.size() + ", images: " + images.size());
-            logger.info("Creating EpubBook - metadata: {}, chapters: {}, cssFiles: {}, images: {}", 
-                       metadata.getTitle(), chapters.size(), cssFiles.size(), images.size());
+            return new EpubBook(metadata, chapters, cssFiles, images, fonts);
+        }
+    }
+    
+    /**
+     * Opens an EPUB file without reading its content up front. Chapters, CSS files and images
+     * are resolved from the archive when they are accessed, so the returned book must be closed.
+     */
+    public EpubBook openEpub(String epubPath) throws IOException {
+        logger.info("Opening EPUB lazily: {}", epubPath);
+        
+        ZipFile zipFile = metrics.measure(ConversionMetrics.ZIP_OPEN, () -> new ZipFile(epubPath));
+        try {
+            String opfPath = metrics.measure(ConversionMetrics.OPF_PARSE, () -> findOpfFile(zipFile));
+            if (opfPath == null) {
+                throw new IOException("Could not find OPF file in EPUB");
+            }
+            
+            Document opfDoc = metrics.measure(ConversionMetrics.OPF_PARSE, () -> parseXmlFromZip(zipFile, zipFile.getEntry(opfPath)));
+            EpubMetadata metadata = extractMetadata(opfDoc);
+            EpubPackage epubPackage = metrics.measure(ConversionMetrics.OPF_PARSE, () -> EpubPackage.parse(opfDoc, opfPath));
+            EpubArchive archive = new EpubArchive(zipFile, epubPackage.getBasePath());
+            
+            List<Chapter> chapters = new ArrayList<>();
+            for (EpubPackage.Item item : epubPackage.getSpine()) {
+                if (item.isXhtml() && archive.contains(item.getHref())) {
+                    chapters.add(new Chapter(item.getHref(), archive));
+                }
+            }
             
-            return new EpubBook(metadata, chapters, cssFiles, images);
+            Set<String> cssHrefs = existingHrefs(epubPackage.getStylesheets(), archive);
+            Set<String> imageHrefs = existingHrefs(epubPackage.getImages(), archive);
+            
+            Map<String, String> cssFiles = new ArchiveResourceMap<>(cssHrefs, archive::readText);
+            Map<String, byte[]> images = new ArchiveResourceMap<>(imageHrefs, archive::readBytes);
+            Map<String, byte[]> fonts = new ArchiveResourceMap<>(existingHrefs(epubPackage.getFonts(), archive), archive::readBytes);
+            
+            logger.info("Opened EpubBook lazily - metadata: {}, chapters: {}, cssFiles: {}, images: {}, fonts: {}",
+                       metadata.getTitle(), chapters.size(), cssFiles.size(), images.size(), fonts.size());
+            
+            return new EpubBook(metadata, chapters, cssFiles, images, fonts, archive);
+        } catch (IOException | RuntimeException e) {
+            zipFile.close();
+            throw e;
         }
     }
     
+    /**
+     * Returns the hrefs of the given manifest items that are present in the archive, in manifest order
+     */
+    private Set<String> existingHrefs(List<EpubPackage.Item> items, EpubArchive archive) {
+        Set<String> hrefs = new LinkedHashSet<>();
+        for (EpubPackage.Item item : items) {
+            if (archive.contains(item.getHref())) {
+                hrefs.add(item.getHref());
+            }
+        }
+        return hrefs;
+    }
+    
     /**
      * Finds the OPF file in the EPUB
      */
     private String findOpfFile(ZipFile zipFile) throws IOException {
-        System.out.println("DEBUG: findOpfFile called");
-        
         // First, try to find the container.xml file
         ZipEntry containerEntry = zipFile.getEntry("META-INF/container.xml");
         if (containerEntry != null) {
-            System.out.println("DEBUG: Found container.xml");
             try {
                 Document doc = parseXmlFromZip(zipFile, containerEntry);
                 NodeList rootFileNodes = doc.getElementsByTagName("rootfile");
                 
-                System.out.println("DEBUG: Found " + rootFileNodes.getLength() + " rootfile elements");
-                
                 for (int i = 0; i < rootFileNodes.getLength(); i++) {
                     Element rootFileElement = (Element) rootFileNodes.item(i);
                     String mediaType = rootFileElement.getAttribute("media-type");
-                    System.out.println("DEBUG: Rootfile " + i + " media-type: " + mediaType);
                     
                     if ("application/oebps-package+xml".equals(mediaType)) {
                         String fullPath = rootFileElement.getAttribute("full-path");
-                        System.out.println("DEBUG: Found OPF file path: " + fullPath);
+                        logger.debug("container.xml names package document {}", fullPath);
                         return fullPath;
                     }
                 }
+                logger.debug("None of the {} rootfile elements in container.xml is a package document", rootFileNodes.getLength());
             } catch (Exception e) {
-                System.out.println("DEBUG: Error parsing container.xml: " + e.getMessage());
                 logger.error("Error parsing container.xml", e);
             }
         } else {
-            System.out.println("DEBUG: container.xml not found");
+            logger.debug("container.xml not found");
         }
         
         // If not found, try common locations
@@ -206,16 +446,13 @@ public class EpubReader {
             "content.opf"
         };
         
-        System.out.println("DEBUG: Trying common locations...");
         for (String location : commonLocations) {
-            System.out.println("DEBUG: Checking location: " + location);
             if (zipFile.getEntry(location) != null) {
-                System.out.println("DEBUG: Found OPF at: " + location);
+                logger.debug("Found package document at {}", location);
                 return location;
             }
         }
         
-        System.out.println("DEBUG: No OPF file found");
         return null;
     }
     
@@ -223,6 +460,7 @@ public class EpubReader {
      * Parses XML from a ZIP entry
      */
     private Document parseXmlFromZip(ZipFile zipFile, ZipEntry entry) throws IOException {
+        ConversionMetrics.recordRead(entry.getCompressedSize());
         try (InputStream inputStream = zipFile.getInputStream(entry)) {
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             DocumentBuilder builder = factory.newDocumentBuilder();
@@ -280,108 +518,183 @@ public class EpubReader {
     /**
      * Extracts chapters from the EPUB
      */
-    private List<Chapter> extractChapters(ZipFile zipFile, Document opfDoc, String opfPath) throws IOException {
-        List<Chapter> chapters = new ArrayList<>();
+    private List<Chapter> extractChapters(ZipFile zipFile, EpubPackage epubPackage) throws IOException {
+        List<Callable<Chapter>> chapterReaders = new ArrayList<>();
         
-        // Get the base path for relative references
-        String basePath = "";
-        int lastSlash = opfPath.lastIndexOf('/');
-        if (lastSlash != -1) {
-            basePath = opfPath.substring(0, lastSlash + 1);
+        for (EpubPackage.Item item : epubPackage.getSpine()) {
+            // Only process XHTML files
+            if (item.isXhtml()) {
+                ZipEntry entry = zipFile.getEntry(epubPackage.getBasePath() + item.getHref());
+                if (entry != null) {
+                    chapterReaders.add(() -> readChapter(zipFile, entry, item.getHref()));
+                }
+            }
         }
         
-        Element rootElement = opfDoc.getDocumentElement();
-        NodeList spineNodes = rootElement.getElementsByTagName("spine");
-        NodeList manifestNodes = rootElement.getElementsByTagName("manifest");
+        return readChapters(chapterReaders);
+    }
+    
+    /**
+     * Reads every manifest resource in a single pass over the archive, in the order the entries
+     * are stored, and routes each one to the chapter, CSS, image or font store. Chapters are parsed
+     * once the pass is complete and returned in spine order.
+     */
+    private List<Chapter> extractInArchiveOrder(ZipFile zipFile, EpubPackage epubPackage,
+                                                Map<String, String> cssFiles, Map<String, byte[]> images,
+                                                Map<String, byte[]> fonts) throws IOException {
+        Set<String> spineHrefs = new HashSet<>();
+        for (EpubPackage.Item item : epubPackage.getSpine()) {
+            if (item.isXhtml()) {
+                spineHrefs.add(item.getHref());
+            }
+        }
         
-        if (spineNodes.getLength() > 0 && manifestNodes.getLength() > 0) {
-            Element spine = (Element) spineNodes.item(0);
-            Element manifest = (Element) manifestNodes.item(0);
+        // The central directory lists entries in the order they are stored, so this reads the file front to back
+        Map<String, String> spineContent = new HashMap<>();
+        String basePath = epubPackage.getBasePath();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory() || !entry.getName().startsWith(basePath)) {
+                continue;
+            }
             
-            NodeList itemrefs = spine.getElementsByTagName("itemref");
+            String href = entry.getName().substring(basePath.length());
+            EpubPackage.Item item = epubPackage.getItemByHref(href);
+            if (item == null) {
+                continue;
+            }
             
-            for (int i = 0; i < itemrefs.getLength(); i++) {
-                Element itemref = (Element) itemrefs.item(i);
-                String idref = itemref.getAttribute("idref");
-                
-                // Find the corresponding item in manifest
-                NodeList items = manifest.getElementsByTagName("item");
-                for (int j = 0; j < items.getLength(); j++) {
-                    Element item = (Element) items.item(j);
-                    if (idref.equals(item.getAttribute("id"))) {
-                        String href = item.getAttribute("href");
-                        String mediaType = item.getAttribute("media-type");
-                        
-                        // Only process XHTML files
-                        if (mediaType != null && mediaType.contains("xhtml")) {
-                            String fullPath = basePath + href;
-                            ZipEntry entry = zipFile.getEntry(fullPath);
-                            
-                            if (entry != null) {
-                                String htmlContent = readTextFromZipEntry(zipFile, entry);
-                                Chapter chapter = parseChapter(htmlContent, href);
-                                if (chapter != null) {
-                                    chapters.add(chapter);
-                                }
-                            }
-                        }
-                        break;
-                    }
-                }
+            if (spineHrefs.contains(href)) {
+                spineContent.put(href, readTextFromZipEntry(zipFile, entry));
+            } else if (item.isStylesheet()) {
+                cssFiles.put(href, readTextFromZipEntry(zipFile, entry));
+            } else if (item.isImage()) {
+                images.put(href, readBinaryFromZipEntry(zipFile, entry));
+            } else if (item.isFont()) {
+                fonts.put(href, readBinaryFromZipEntry(zipFile, entry));
+            }
+        }
+        
+        List<Callable<Chapter>> chapterReaders = new ArrayList<>();
+        for (EpubPackage.Item item : epubPackage.getSpine()) {
+            String htmlContent = spineContent.get(item.getHref());
+            if (htmlContent != null) {
+                chapterReaders.add(() -> parseChapter(htmlContent, item.getHref()));
+            }
+        }
+        return readChapters(chapterReaders);
+    }
+    
+    /**
+     * Runs the chapter readers serially, or on a worker pool when chapter parallelism is enabled,
+     * keeping the chapters in spine order
+     */
+    private List<Chapter> readChapters(List<Callable<Chapter>> chapterReaders) throws IOException {
+        if (chapterParallelism > 1 && chapterReaders.size() > 1) {
+            return readChaptersInParallel(chapterReaders);
+        }
+        
+        List<Chapter> chapters = new ArrayList<>();
+        for (Callable<Chapter> chapterReader : chapterReaders) {
+            Chapter chapter = callChapterReader(chapterReader);
+            if (chapter != null) {
+                chapters.add(chapter);
             }
         }
         
         return chapters;
     }
     
+    private Chapter callChapterReader(Callable<Chapter> chapterReader) throws IOException {
+        try {
+            return chapterReader.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Error extracting chapter", e);
+        }
+    }
+    
+    /**
+     * Reads and parses spine items on a bounded worker pool, keeping the chapters in spine order
+     */
+    private List<Chapter> readChaptersInParallel(List<Callable<Chapter>> chapterReaders) throws IOException {
+        int threads = Math.min(chapterParallelism, chapterReaders.size());
+        logger.info("Extracting {} chapters with {} threads", chapterReaders.size(), threads);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "epub-chapter-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        try {
+            // Futures are collected in spine order, so completion order does not matter
+            List<Future<Chapter>> futures = new ArrayList<>();
+            for (Callable<Chapter> chapterReader : chapterReaders) {
+                futures.add(executor.submit(ConversionMetrics.propagate(chapterReader)));
+            }
+            
+            List<Chapter> chapters = new ArrayList<>();
+            for (Future<Chapter> future : futures) {
+                Chapter chapter = future.get();
+                if (chapter != null) {
+                    chapters.add(chapter);
+                }
+            }
+            return chapters;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting chapters", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error extracting chapters", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Reads a single spine item from the archive and parses it into a chapter
+     */
+    private Chapter readChapter(ZipFile zipFile, ZipEntry entry, String href) throws IOException {
+        String htmlContent = readTextFromZipEntry(zipFile, entry);
+        return parseChapter(htmlContent, href);
+    }
+    
     /**
      * Extracts CSS files from the EPUB
      */
-    private Map<String, String> extractCssFiles(ZipFile zipFile, Document opfDoc, String opfPath) {
-        System.out.println("DEBUG: extractCssFiles called");
+    private Map<String, String> extractCssFiles(ZipFile zipFile, EpubPackage epubPackage) {
         Map<String, String> cssFiles = new HashMap<>();
         
         try {
             // Get the base directory of the OPF file
-            String baseDir = opfPath.substring(0, opfPath.lastIndexOf('/') + 1);
-            System.out.println("DEBUG: Base directory: " + baseDir);
-            
-            // Get all manifest items
-            NodeList manifestItems = opfDoc.getElementsByTagName("item");
-            System.out.println("DEBUG: Found " + manifestItems.getLength() + " manifest items");
+            String baseDir = epubPackage.getBasePath();
             
-            for (int i = 0; i < manifestItems.getLength(); i++) {
-                Element item = (Element) manifestItems.item(i);
-                String mediaType = item.getAttribute("media-type");
-                System.out.println("DEBUG: Processing item " + i + " with media-type: " + mediaType);
-                
-                if ("text/css".equals(mediaType)) {
-                    String href = item.getAttribute("href");
-                    System.out.println("DEBUG: Found CSS file: " + href);
-                    
-                    // Build the full path
-                    String fullPath = baseDir + href;
-                    System.out.println("DEBUG: Full path: " + fullPath);
-                    
-                    // Get the entry from the zip
-                    ZipEntry entry = zipFile.getEntry(fullPath);
-                    if (entry != null) {
-                        System.out.println("DEBUG: CSS entry found in zip");
-                        try (InputStream is = zipFile.getInputStream(entry)) {
-                            String content = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-                            cssFiles.put(href, content);
-                            System.out.println("DEBUG: CSS file extracted: " + href + " (" + content.length() + " bytes)");
+            for (EpubPackage.Item item : epubPackage.getStylesheets()) {
+                String href = item.getHref();
+                ZipEntry entry = zipFile.getEntry(baseDir + href);
+                if (entry != null) {
+                    ConversionMetrics.recordRead(entry.getCompressedSize());
+                    try (InputStream is = zipFile.getInputStream(entry)) {
+                        String content = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+                        cssFiles.put(href, content);
+                        logger.debug("CSS file extracted: {} ({} chars)", href, content.length());
+                        if (trace.isEnabled()) {
+                            trace.event("css", "href", href, "chars", content.length());
                         }
-                    } else {
-                        System.out.println("DEBUG: CSS entry not found in zip: " + fullPath);
                     }
+                } else {
+                    logger.debug("CSS entry not found in zip: {}{}", baseDir, href);
                 }
             }
             
-            System.out.println("DEBUG: Total CSS files extracted: " + cssFiles.size());
             logger.info("Extracted {} CSS files", cssFiles.size());
         } catch (Exception e) {
-            System.out.println("DEBUG: Error extracting CSS files: " + e.getMessage());
             logger.error("Error extracting CSS files", e);
         }
         
@@ -391,61 +704,64 @@ public class EpubReader {
     /**
      * Extracts images from the EPUB
      */
-    private Map<String, byte[]> extractImages(ZipFile zipFile, Document opfDoc, String opfPath) {
-        System.out.println("DEBUG: extractImages called");
+    private Map<String, byte[]> extractImages(ZipFile zipFile, EpubPackage epubPackage) {
         Map<String, byte[]> images = new HashMap<>();
         
         try {
             // Get the base directory of the OPF file
-            String baseDir = opfPath.substring(0, opfPath.lastIndexOf('/') + 1);
-            System.out.println("DEBUG: Base directory for images: " + baseDir);
-            
-            // Get all manifest items
-            NodeList manifestItems = opfDoc.getElementsByTagName("item");
-            System.out.println("DEBUG: Found " + manifestItems.getLength() + " manifest items for images");
+            String baseDir = epubPackage.getBasePath();
             
-            for (int i = 0; i < manifestItems.getLength(); i++) {
-                Element item = (Element) manifestItems.item(i);
-                String mediaType = item.getAttribute("media-type");
-                System.out.println("DEBUG: Processing item " + i + " with media-type: " + mediaType);
-                
-                if (mediaType.startsWith("image/")) {
-                    String href = item.getAttribute("href");
-                    System.out.println("DEBUG: Found image file: " + href);
-                    
-                    // Build the full path
-                    String fullPath = baseDir + href;
-                    System.out.println("DEBUG: Full path for image: " + fullPath);
-                    
-                    // Get the entry from the zip
-                    ZipEntry entry = zipFile.getEntry(fullPath);
-                    if (entry != null) {
-                        System.out.println("DEBUG: Image entry found in zip");
-                        try (InputStream is = zipFile.getInputStream(entry)) {
-                            byte[] content = is.readAllBytes();
-                            images.put(href, content);
-                            System.out.println("DEBUG: Image file extracted: " + href + " (" + content.length + " bytes)");
+            for (EpubPackage.Item item : epubPackage.getImages()) {
+                String href = item.getHref();
+                ZipEntry entry = zipFile.getEntry(baseDir + href);
+                if (entry != null) {
+                    ConversionMetrics.recordRead(entry.getCompressedSize());
+                    try (InputStream is = zipFile.getInputStream(entry)) {
+                        byte[] content = is.readAllBytes();
+                        images.put(href, content);
+                        logger.debug("Image file extracted: {} ({} bytes)", href, content.length);
+                        if (trace.isEnabled()) {
+                            trace.event("image", "href", href, "bytes", content.length);
                         }
-                    } else {
-                        System.out.println("DEBUG: Image entry not found in zip: " + fullPath);
                     }
+                } else {
+                    logger.debug("Image entry not found in zip: {}{}", baseDir, href);
                 }
             }
             
-            System.out.println("DEBUG: Total images extracted: " + images.size());
             logger.info("Extracted {} images", images.size());
         } catch (Exception e) {
-            System.out.println("DEBUG: Error extracting images: " + e.getMessage());
             logger.error("Error extracting images", e);
         }
         
         return images;
     }
     
+    /**
+     * Extracts the embedded fonts from the EPUB
+     */
+    private Map<String, byte[]> extractFonts(ZipFile zipFile, EpubPackage epubPackage) {
+        Map<String, byte[]> fonts = new HashMap<>();
+        for (EpubPackage.Item item : epubPackage.getFonts()) {
+            ZipEntry entry = zipFile.getEntry(epubPackage.getBasePath() + item.getHref());
+            if (entry == null) {
+                logger.warn("Font not found in EPUB: {}", item.getHref());
+                continue;
+            }
+            try {
+                fonts.put(item.getHref(), readBinaryFromZipEntry(zipFile, entry));
+            } catch (IOException e) {
+                logger.error("Error extracting font {}", item.getHref(), e);
+            }
+        }
+        return fonts;
+    }
+    
     /**
      * Reads binary content from a ZIP entry
      */
     private byte[] readBinaryFromZipEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+        ConversionMetrics.recordRead(entry.getCompressedSize());
         try (InputStream inputStream = zipFile.getInputStream(entry)) {
             return inputStream.readAllBytes();
         }
@@ -455,17 +771,8 @@ public class EpubReader {
      * Reads text content from a ZIP entry
      */
     private String readTextFromZipEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
-        try (InputStream inputStream = zipFile.getInputStream(entry)) {
-            byte[] buffer = new byte[1024];
-            StringBuilder content = new StringBuilder();
-            int bytesRead;
-            
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                content.append(new String(buffer, 0, bytesRead, "UTF-8"));
-            }
-            
-            return content.toString();
-        }
+        // Decode the entry as a whole so multi-byte characters are never split across buffers
+        return new String(readBinaryFromZipEntry(zipFile, entry), StandardCharsets.UTF_8);
     }
     
     /**
@@ -474,22 +781,53 @@ public class EpubReader {
     private Chapter parseChapter(String htmlContent, String filename) {
         try {
             org.jsoup.nodes.Document doc = org.jsoup.Jsoup.parse(htmlContent);
-            
-            // Extract title from h1, h2, or title tag
-            String title = filename; // Default to filename
-            
-            org.jsoup.nodes.Element titleElement = doc.selectFirst("h1, h2, h3, title");
-            if (titleElement != null) {
-                title = titleElement.text();
+            if (trace.isEnabled()) {
+                trace.event("chapter", "href", filename, "chars", htmlContent.length());
             }
-            
-            // Extract text content
-            String textContent = doc.body() != null ? doc.body().text() : doc.text();
-            
-            return new Chapter(title, textContent, htmlContent);
+            return new Chapter(extractTitle(doc, filename), extractText(doc), htmlContent, filename, extractStylesheets(doc, filename));
         } catch (Exception e) {
             logger.error("Error parsing chapter from HTML", e);
             return null;
         }
     }
-} 
\ No newline at end of file
+    
+    /**
+     * Extracts the chapter title from h1, h2, h3 or title tag, defaulting to the filename
+     */
+    private static String extractTitle(org.jsoup.nodes.Document doc, String filename) {
+        org.jsoup.nodes.Element titleElement = doc.selectFirst("h1, h2, h3, title");
+        return titleElement != null ? titleElement.text() : filename;
+    }
+    
+    /**
+     * Resolves the chapter's linked stylesheets to manifest hrefs, skipping alternate and external sheets
+     */
+    private static List<String> extractStylesheets(org.jsoup.nodes.Document doc, String filename) {
+        List<String> stylesheets = new ArrayList<>();
+        for (org.jsoup.nodes.Element link : doc.select("link[rel][href]")) {
+            List<String> rel = Arrays.asList(link.attr("rel").toLowerCase().trim().split("\\s+"));
+            if (!rel.contains("stylesheet") || rel.contains("alternate")) {
+                continue;
+            }
+            
+            String stylesheet = EpubArchive.resolveHref(filename, link.attr("href"));
+            if (stylesheet != null && !stylesheets.contains(stylesheet)) {
+                stylesheets.add(stylesheet);
+            }
+        }
+        return stylesheets;
+    }
+    
+    /**
+     * Extracts the plain text content of a chapter
+     */
+    private static String distinctCharacters(String text) {
+        StringBuilder characters = new StringBuilder();
+        text.codePoints().distinct().forEach(characters::appendCodePoint);
+        return characters.toString();
+    }
+    
+    private static String extractText(org.jsoup.nodes.Document doc) {
+        return doc.body() != null ? doc.body().text() : doc.text();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package com.epubtopdf;
+
+import com.openhtmltopdf.extend.FSStream;
+import com.openhtmltopdf.extend.FSStreamFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Serves epub: URIs to openhtmltopdf straight from the book's image store, so image bytes
+ * are handed to the renderer without passing through the HTML text as data URIs.
+ * Optimized replacements, when present, are served instead of the original bytes.
+ */
+public class EpubStreamFactory implements FSStreamFactory {
+    private static final Logger logger = LoggerFactory.getLogger(EpubStreamFactory.class);
+    
+    public static final String SCHEME = "epub";
+    private static final String URI_PREFIX = SCHEME + ":/";
+    
+    private final Map<String, byte[]> images;
+    private final Map<String, byte[]> replacements;
+    
+    public EpubStreamFactory(Map<String, byte[]> images) {
+        this(images, Collections.emptyMap());
+    }
+    
+    public EpubStreamFactory(Map<String, byte[]> images, Map<String, byte[]> replacements) {
+        this.images = images;
+        this.replacements = replacements;
+    }
+    
+    /**
+     * Returns the URI under which the renderer can load the given manifest href
+     */
+    public static String toUri(String href) {
+        return URI_PREFIX + href;
+    }
+    
+    /**
+     * Returns the manifest href of an epub: URI, or null for other URIs
+     */
+    public static String toHref(String uri) {
+        return uri.startsWith(URI_PREFIX) ? uri.substring(URI_PREFIX.length()) : null;
+    }
+    
+    /**
+     * Returns the bytes served for a manifest href, or null if the book has no such resource
+     */
+    public byte[] getResource(String href) {
+        byte[] data = replacements.get(href);
+        return data != null ? data : images.get(href);
+    }
+    
+    @Override
+    public FSStream getUrl(String url) {
+        String href = toHref(url);
+        if (href == null) {
+            return null;
+        }
+        
+        byte[] bytes = getResource(href);
+        if (bytes == null) {
+            logger.warn("Resource not found in EPUB: {}", href);
+            return null;
+        }
+        
+        return new FSStream() {
+            @Override
+            public InputStream getStream() {
+                return new ByteArrayInputStream(bytes);
+            }
+            
+            @Override
+            public Reader getReader() {
+                return new InputStreamReader(getStream(), StandardCharsets.UTF_8);
+            }
+        };
+    }
+}
\ No newline at end of file
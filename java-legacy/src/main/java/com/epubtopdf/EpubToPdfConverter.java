@@ -4,8 +4,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,43 +24,302 @@ public class EpubToPdfConverter {
             return;
         }
         
-        if (args.length < 2) {
+        ConversionOptions options = new ConversionOptions();
+        List<String> positional;
+        try {
+            positional = parseArguments(args, options);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        
+        if (options.isAsyncLog()) {
+            AsyncLogSink.installForConsole();
+        }
+        
+        if (options.getServerPort() >= 0) {
+            runServer(options);
+            return;
+        }
+        
+        if (options.isBatch()) {
+            System.exit(runBatch(positional, options));
+            return;
+        }
+        
+        if (options.isAnalyze()) {
+            System.exit(runAnalysis(positional, options));
+            return;
+        }
+        
+        if (positional.size() < 2) {
             System.err.println("Error: Both input and output files are required.");
             printUsage();
             System.exit(1);
         }
         
-        String inputPath = args[0];
-        String outputPath = args[1];
+        String inputPath = positional.get(0);
+        String outputPath = positional.get(1);
         
+        Trace trace = openTrace(outputPath, options.isTrace(), options);
+        ConversionMetrics metrics = new ConversionMetrics(inputPath, outputPath, trace);
+        Diagnostics diagnostics = openDiagnostics(outputPath, options);
         try {
             logger.info("Starting conversion: {} -> {}", inputPath, outputPath);
             
             // Read EPUB
-            EpubReader epubReader = new EpubReader();
+            EpubReader epubReader = new EpubReader(options, metrics);
             logger.info("About to read EPUB file: {}", inputPath);
-            EpubReader.EpubBook epubBook = epubReader.readEpub(inputPath);
-            logger.info("EPUB read complete - Book: {}, Chapters: {}, CSS: {}, Images: {}", 
-                epubBook.getMetadata().getTitle(), epubBook.getChapters().size(), 
-                epubBook.getCssFiles().size(), epubBook.getImages().size());
-            
-            // Debug: Save extracted CSS files
-            saveDebugCssFiles(epubBook);
-            
-            // Create PDF
-            PdfCreator pdfCreator = new PdfCreator();
-            pdfCreator.createPdf(epubBook, outputPath);
+            try (EpubReader.EpubBook epubBook = openBook(epubReader, inputPath, options)) {
+                logger.info("EPUB read complete - Book: {}, Chapters: {}, CSS: {}, Images: {}", 
+                    epubBook.getMetadata().getTitle(), epubBook.getChapters().size(), 
+                    epubBook.getCssFiles().size(), epubBook.getImages().size());
+                
+                saveBookDiagnostics(diagnostics, epubBook);
+                
+                // Create PDF
+                PdfCreator pdfCreator = new PdfCreator(options, metrics, diagnostics);
+                pdfCreator.createPdf(epubBook, outputPath);
+            }
             
+            finishMetrics(metrics, null, options);
             logger.info("Conversion completed successfully");
             System.out.println("Conversion completed successfully!");
             System.out.println("Output file: " + outputPath);
-            
+        
         } catch (Exception e) {
+            finishMetrics(metrics, e, options);
+            closeTrace(trace);
             logger.error("Error during conversion", e);
             System.err.println("Error during conversion: " + e.getMessage());
             e.printStackTrace();
             System.exit(1);
         }
+        closeTrace(trace);
+    }
+    
+    /**
+     * Splits command line arguments into positional paths and applies any options
+     * @return the positional arguments in order
+     * @throws IllegalArgumentException if an option is unknown
+     */
+    static List<String> parseArguments(String[] args, ConversionOptions options) {
+        List<String> positional = new ArrayList<>();
+        
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+            
+            switch (arg) {
+                case "--lazy":
+                    options.setLazyLoading(true);
+                    break;
+                case "--sequential-read":
+                    options.setSequentialExtraction(true);
+                    break;
+                case "--read-threads":
+                    options.setChapterParallelism(parseIntValue(args, ++i, arg));
+                    break;
+                case "--segmented":
+                    options.setSegmentedRendering(true);
+                    break;
+                case "--chapters-per-segment":
+                    options.setChaptersPerSegment(parseIntValue(args, ++i, arg));
+                    break;
+                case "--render-threads":
+                    options.setRenderThreads(parseIntValue(args, ++i, arg));
+                    break;
+                case "--max-main-memory":
+                    options.setMaxMainMemoryBytes(parseIntValue(args, ++i, arg) * 1024L * 1024L);
+                    break;
+                case "--scratch-dir":
+                    options.setScratchDirectory(parseStringValue(args, ++i, arg));
+                    break;
+                case "--cache-dir":
+                    options.setCacheDirectory(parseStringValue(args, ++i, arg));
+                    break;
+                case "--cache-max-mb":
+                    options.setCacheMaxBytes(parseIntValue(args, ++i, arg) * 1024L * 1024);
+                    break;
+                case "--incremental":
+                    options.setIncremental(true);
+                    break;
+                case "--previous":
+                    options.setIncremental(true).setPreviousPdf(parseStringValue(args, ++i, arg));
+                    break;
+                case "--batch":
+                    options.setBatch(true);
+                    break;
+                case "--workers":
+                    options.setBatchWorkers(parseIntValue(args, ++i, arg));
+                    break;
+                case "--book-memory":
+                    options.setBookMemoryBytes(parseIntValue(args, ++i, arg) * 1024L * 1024L);
+                    break;
+                case "--serve":
+                    options.setServerPort(parseIntValue(args, ++i, arg));
+                    break;
+                case "--queue-size":
+                    options.setJobQueueSize(parseIntValue(args, ++i, arg));
+                    break;
+                case "--job-timeout":
+                    options.setJobTimeoutSeconds(parseIntValue(args, ++i, arg));
+                    break;
+                case "--max-upload-mb":
+                    options.setMaxUploadBytes(parseIntValue(args, ++i, arg) * 1024L * 1024L);
+                    break;
+                case "--image-dpi":
+                    options.setImageDpi(parseIntValue(args, ++i, arg));
+                    break;
+                case "--jpeg-quality":
+                    options.setJpegQuality(parseIntValue(args, ++i, arg) / 100f);
+                    break;
+                case "--font-report":
+                    options.setFontReport(true);
+                    break;
+                case "--metrics-report":
+                    options.setMetricsReport(true);
+                    break;
+                case "--trace":
+                    options.setTrace(true);
+                    break;
+                case "--async-log":
+                    options.setAsyncLog(true);
+                    break;
+                case "--analyze":
+                    options.setAnalyze(true);
+                    break;
+                case "--diagnostics":
+                    options.setDiagnosticsDirectory(parseStringValue(args, ++i, arg));
+                    break;
+                case "--diagnostics-max-mb":
+                    options.setDiagnosticsMaxBytes(parseIntValue(args, ++i, arg) * 1024L * 1024);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        
+        return positional;
+    }
+    
+    /**
+     * Parses the integer value that follows an option
+     */
+    private static int parseIntValue(String[] args, int index, String option) {
+        try {
+            return Integer.parseInt(parseStringValue(args, index, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option " + option + ": " + args[index]);
+        }
+    }
+    
+    /**
+     * Returns the value that follows an option
+     */
+    private static String parseStringValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for option: " + option);
+        }
+        return args[index];
+    }
+    
+    /**
+     * Scans a book without rendering it and prints the analysis as JSON on standard output
+     * @return the process exit status
+     */
+    private static int runAnalysis(List<String> positional, ConversionOptions options) {
+        if (positional.isEmpty()) {
+            System.err.println("Error: An input file is required.");
+            printUsage();
+            return 1;
+        }
+        
+        try {
+            EpubAnalyzer.Analysis analysis = new EpubAnalyzer(options).analyze(positional.get(0));
+            System.out.println(analysis.toJson());
+            return 0;
+        } catch (Exception e) {
+            logger.error("Error during analysis", e);
+            System.err.println("Error during analysis: " + e.getMessage());
+            return 1;
+        }
+    }
+    
+    /**
+     * Converts every book of a directory or manifest file and writes the batch report
+     * @return the process exit status; 1 if any book failed
+     */
+    private static int runBatch(List<String> positional, ConversionOptions options) {
+        if (positional.size() < 2) {
+            System.err.println("Error: Batch mode requires an input directory or manifest file and an output directory.");
+            printUsage();
+            return 1;
+        }
+        
+        Path input = Paths.get(positional.get(0));
+        Path outputDir = Paths.get(positional.get(1));
+        try {
+            BatchConverter batchConverter = new BatchConverter(options);
+            List<BatchConverter.Job> jobs = Files.isDirectory(input)
+                ? BatchConverter.listDirectory(input, outputDir)
+                : BatchConverter.readManifest(input, outputDir);
+            List<BatchConverter.Result> results = batchConverter.convertAll(jobs);
+            
+            Path reportFile = outputDir.resolve(BatchConverter.REPORT_FILE);
+            BatchConverter.writeReport(results, reportFile);
+            
+            long failed = results.stream().filter(result -> !result.isSuccess()).count();
+            System.out.println("Converted " + (results.size() - failed) + " of " + results.size() + " books");
+            for (BatchConverter.Result result : results) {
+                if (!result.isSuccess()) {
+                    System.err.println("Failed: " + result.getJob().getInputPath() + ": " + result.getError());
+                }
+            }
+            System.out.println("Report: " + reportFile);
+            return failed > 0 ? 1 : 0;
+        } catch (IllegalArgumentException | IOException e) {
+            logger.error("Error during batch conversion", e);
+            System.err.println("Error during batch conversion: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Batch conversion interrupted");
+            return 1;
+        }
+    }
+    
+    /**
+     * Runs the conversion service until the process is stopped
+     */
+    private static void runServer(ConversionOptions options) {
+        try {
+            ConversionServer server = new ConversionServer(options);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "conversion-shutdown"));
+            server.start();
+            Thread.currentThread().join();
+        } catch (IllegalArgumentException | IOException e) {
+            logger.error("Could not start the conversion service", e);
+            System.err.println("Could not start the conversion service: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Reads the book eagerly or opens it lazily depending on the options
+     */
+    private static EpubReader.EpubBook openBook(EpubReader epubReader, String inputPath, ConversionOptions options) throws IOException {
+        if (options.isLazyLoading()) {
+            return epubReader.openEpub(inputPath);
+        }
+        return epubReader.readEpub(inputPath);
     }
     
     /**
@@ -66,6 +329,25 @@ public class EpubToPdfConverter {
      * @throws IOException if there's an error during conversion
      */
     public static void convertEpubToPdf(String inputPath, String outputPath) throws IOException {
+        convertEpubToPdf(inputPath, outputPath, new ConversionOptions());
+    }
+    
+    /**
+     * Converts an EPUB file to PDF
+     * @param inputPath Path to the input EPUB file
+     * @param outputPath Path where the PDF should be saved
+     * @param options Conversion settings
+     * @throws IOException if there's an error during conversion
+     */
+    public static void convertEpubToPdf(String inputPath, String outputPath, ConversionOptions options) throws IOException {
+        convertEpubToPdf(inputPath, outputPath, options, options.isTrace());
+    }
+    
+    /**
+     * Converts an EPUB file to PDF, tracing it to {@code <output>.trace.jsonl} if requested
+     * regardless of the options, so that a single job can be traced
+     */
+    static void convertEpubToPdf(String inputPath, String outputPath, ConversionOptions options, boolean traced) throws IOException {
         // Validate input file
         File inputFile = new File(inputPath);
         if (!inputFile.exists()) {
@@ -95,57 +377,112 @@ public class EpubToPdfConverter {
         
         logger.info("Starting conversion: {} -> {}", inputPath, outputPath);
         
-        // Read the EPUB file
-        EpubReader epubReader = new EpubReader();
-        EpubReader.EpubBook epubBook = epubReader.readEpub(inputPath);
-        
-        // Validate that we have content
-        if (epubBook.getChapters() == null || epubBook.getChapters().isEmpty()) {
-            throw new IOException("No readable content found in EPUB file: " + inputPath);
+        // Read the EPUB file; a lazily opened book stays open until the PDF is written
+        Trace trace = openTrace(outputPath, traced, options);
+        ConversionMetrics metrics = new ConversionMetrics(inputPath, outputPath, trace);
+        Diagnostics diagnostics = openDiagnostics(outputPath, options);
+        EpubReader epubReader = new EpubReader(options, metrics);
+        try (EpubReader.EpubBook epubBook = openBook(epubReader, inputPath, options)) {
+            // Validate that we have content
+            if (epubBook.getChapters() == null || epubBook.getChapters().isEmpty()) {
+                throw new IOException("No readable content found in EPUB file: " + inputPath);
+            }
+            saveBookDiagnostics(diagnostics, epubBook);
+            
+            // Create the PDF
+            PdfCreator pdfCreator = new PdfCreator(options, metrics, diagnostics);
+            pdfCreator.createPdf(epubBook, outputPath);
+        } catch (IOException | RuntimeException e) {
+            finishMetrics(metrics, e, options);
+            throw e;
+        } finally {
+            closeTrace(trace);
         }
         
-        // Create the PDF
-        PdfCreator pdfCreator = new PdfCreator();
-        pdfCreator.createPdf(epubBook, outputPath);
-        
+        finishMetrics(metrics, null, options);
         logger.info("Conversion completed successfully");
     }
     
-    private static void saveDebugCssFiles(EpubReader.EpubBook epubBook) {
+    /**
+     * Opens the trace of a conversion, or returns the disabled trace if tracing is off or the
+     * trace file cannot be created
+     */
+    private static Trace openTrace(String outputPath, boolean traced, ConversionOptions options) {
+        if (!traced) {
+            return Trace.DISABLED;
+        }
         try {
-            // Create debug directory
-            File debugDir = new File("debug");
-            if (!debugDir.exists()) {
-                debugDir.mkdirs();
-            }
-            
-            // Save CSS files
-            Map<String, String> cssFiles = epubBook.getCssFiles();
-            logger.info("Debug: Saving {} CSS files", cssFiles.size());
-            
-            for (Map.Entry<String, String> entry : cssFiles.entrySet()) {
-                String filename = entry.getKey().replace("/", "_").replace("\\", "_");
-                File cssFile = new File(debugDir, filename);
-                
-                try (FileWriter writer = new FileWriter(cssFile)) {
-                    writer.write(entry.getValue());
-                    logger.info("Debug: Saved CSS file: {}", cssFile.getPath());
-                }
-            }
-            
-            // Save image count info
-            File imageInfoFile = new File(debugDir, "image_info.txt");
-            try (FileWriter writer = new FileWriter(imageInfoFile)) {
-                writer.write("Total images extracted: " + epubBook.getImages().size() + "\n\n");
-                writer.write("Image files:\n");
-                for (String imagePath : epubBook.getImages().keySet()) {
-                    writer.write("- " + imagePath + "\n");
-                }
+            return Trace.open(Trace.pathFor(outputPath), options.isAsyncLog());
+        } catch (IOException e) {
+            logger.warn("Could not open trace for {}, converting without it", outputPath, e);
+            return Trace.DISABLED;
+        }
+    }
+    
+    private static void closeTrace(Trace trace) {
+        try {
+            trace.close();
+        } catch (IOException e) {
+            logger.warn("Could not finish trace {}", trace.getFile(), e);
+        }
+    }
+    
+    /**
+     * Completes the metrics of a conversion, logs their totals and writes the report when requested
+     * @param failure the error that ended the conversion, or null if the PDF was written
+     */
+    private static void finishMetrics(ConversionMetrics metrics, Throwable failure, ConversionOptions options) {
+        metrics.finish(failure == null ? null : failure.getMessage() != null ? failure.getMessage() : failure.getClass().getName());
+        logger.info("Conversion of {} {} in {} ms: {} ms CPU, {} MB allocated, {} KB read from the archive, peak heap {} MB, {} KB written",
+            metrics.getInputPath(), failure == null ? "succeeded" : "failed", metrics.getWallNanos() / 1_000_000,
+            metrics.getCpuNanos() / 1_000_000, metrics.getAllocatedBytes() / (1024 * 1024), metrics.getBytesRead() / 1024,
+            metrics.getPeakHeapBytes() / (1024 * 1024), Math.max(0, metrics.getOutputBytes()) / 1024);
+        
+        if (options.isMetricsReport()) {
+            try {
+                metrics.writeReport();
+                logger.info("Wrote conversion metrics to {}", ConversionMetrics.reportPathFor(metrics.getOutputPath()));
+            } catch (IOException e) {
+                logger.warn("Could not write conversion metrics for {}", metrics.getOutputPath(), e);
             }
-            
+        }
+    }
+    
+    /**
+     * Opens the diagnostics of a conversion, or returns the disabled diagnostics if none are
+     * configured or their directory cannot be created
+     */
+    private static Diagnostics openDiagnostics(String outputPath, ConversionOptions options) {
+        if (options.getDiagnosticsDirectory() == null) {
+            return Diagnostics.DISABLED;
+        }
+        try {
+            return Diagnostics.open(options.getDiagnosticsDirectory(), outputPath, options.getDiagnosticsMaxBytes());
         } catch (IOException e) {
-            logger.error("Error saving debug files", e);
+            logger.warn("Could not create diagnostics directory for {}, converting without it", outputPath, e);
+            return Diagnostics.DISABLED;
+        }
+    }
+    
+    /**
+     * Queues the book's stylesheets and a list of its images as diagnostics artifacts
+     */
+    private static void saveBookDiagnostics(Diagnostics diagnostics, EpubReader.EpubBook epubBook) {
+        if (!diagnostics.isEnabled()) {
+            return;
+        }
+        
+        for (Map.Entry<String, String> entry : epubBook.getCssFiles().entrySet()) {
+            diagnostics.write(entry.getKey(), entry.getValue());
+        }
+        
+        StringBuilder imageInfo = new StringBuilder();
+        imageInfo.append("Total images extracted: ").append(epubBook.getImages().size()).append("\n\n");
+        imageInfo.append("Image files:\n");
+        for (String imagePath : epubBook.getImages().keySet()) {
+            imageInfo.append("- ").append(imagePath).append("\n");
         }
+        diagnostics.write("image_info.txt", imageInfo.toString());
     }
     
     /**
@@ -155,7 +492,10 @@ public class EpubToPdfConverter {
         System.out.println("EPUB to PDF Converter");
         System.out.println("====================");
         System.out.println();
-        System.out.println("Usage: java -jar epub-to-pdf-converter.jar <input.epub> <output.pdf>");
+        System.out.println("Usage: java -jar epub-to-pdf-converter.jar [options] <input.epub> <output.pdf>");
+        System.out.println("       java -jar epub-to-pdf-converter.jar --batch [options] <input-dir|list.txt> <output-dir>");
+        System.out.println("       java -jar epub-to-pdf-converter.jar --serve <port> [options]");
+        System.out.println("       java -jar epub-to-pdf-converter.jar --analyze [options] <input.epub>");
         System.out.println();
         System.out.println("Arguments:");
         System.out.println("  <input.epub>   Path to the input EPUB file");
@@ -163,10 +503,58 @@ public class EpubToPdfConverter {
         System.out.println();
         System.out.println("Options:");
         System.out.println("  --help, -h     Show this help message");
+        System.out.println("  --lazy         Read chapters, CSS and images from the archive on demand");
+        System.out.println("  --sequential-read");
+        System.out.println("                 Read the archive once in stored order (ignored with --lazy)");
+        System.out.println("  --read-threads <n>");
+        System.out.println("                 Parse chapters on n threads (0 = one per processor)");
+        System.out.println("  --segmented    Lay out chapters as separate documents and merge the pages");
+        System.out.println("  --chapters-per-segment <n>");
+        System.out.println("                 Chapters laid out together in segmented mode (default 1)");
+        System.out.println("  --render-threads <n>");
+        System.out.println("                 Lay out segments on n threads (0 = one per processor, implies --segmented)");
+        System.out.println("  --max-main-memory <mb>");
+        System.out.println("                 Heap PDFBox may use per document before spilling to scratch files");
+        System.out.println("  --scratch-dir <dir>");
+        System.out.println("                 Directory for PDFBox scratch files");
+        System.out.println("  --cache-dir <dir>");
+        System.out.println("                 Reuse rendered chapters from this cache directory (implies --segmented)");
+        System.out.println("  --cache-max-mb <mb>");
+        System.out.println("                 Size the render cache is trimmed to (default 1024)");
+        System.out.println("  --incremental  Re-render only chapters changed since the last conversion to this output");
+        System.out.println("  --previous <old.pdf>");
+        System.out.println("                 Reuse unchanged chapters from this earlier output (implies --incremental)");
+        System.out.println("  --batch        Convert every EPUB in a directory, or listed in a file, in one JVM");
+        System.out.println("  --workers <n>  Books converted concurrently in batch mode (0 = one per processor)");
+        System.out.println("  --book-memory <mb>");
+        System.out.println("                 Heap budget per book in batch mode; caps the workers to fit the heap");
+        System.out.println("  --serve <port> Run the conversion service on a loopback port (POST /jobs, GET /jobs/<id>[/pdf])");
+        System.out.println("  --queue-size <n>");
+        System.out.println("                 Jobs the service queues before answering 503 (default 16)");
+        System.out.println("  --job-timeout <seconds>");
+        System.out.println("                 Time after which the service gives up on a job (default 600, 0 = none)");
+        System.out.println("  --max-upload-mb <mb>");
+        System.out.println("                 Largest EPUB the service accepts (default 100)");
+        System.out.println("  --analyze      Print the book's size, images, stylesheets, fonts and estimated heap and time as JSON");
+        System.out.println("                 without converting it; render options change the estimate");
+        System.out.println("  --image-dpi <dpi>");
+        System.out.println("                 Downsample images to this resolution at their rendered size");
+        System.out.println("  --jpeg-quality <0-100>");
+        System.out.println("                 JPEG quality used with --image-dpi (default 85)");
+        System.out.println("  --font-report  Write the size and glyph count of each embedded font to <output>.fonts.tsv");
+        System.out.println("  --metrics-report");
+        System.out.println("                 Write the time, CPU, allocation and archive reads of each stage to <output>.metrics.json");
+        System.out.println("  --trace        Write a trace of every stage and resource of the conversion to <output>.trace.jsonl");
+        System.out.println("  --async-log    Write the log and traces on background threads");
+        System.out.println("  --diagnostics <dir>");
+        System.out.println("                 Write each conversion's stylesheets, image list and generated HTML below this directory");
+        System.out.println("  --diagnostics-max-mb <mb>");
+        System.out.println("                 Most diagnostics a single conversion writes (default 64)");
         System.out.println();
         System.out.println("Examples:");
         System.out.println("  java -jar epub-to-pdf-converter.jar book.epub book.pdf");
         System.out.println("  java -jar epub-to-pdf-converter.jar /path/to/book.epub /path/to/output.pdf");
+        System.out.println("  java -Xmx8g -jar epub-to-pdf-converter.jar --batch --workers 4 --book-memory 1536 books/ pdfs/");
         System.out.println();
         System.out.println("Docker usage:");
         System.out.println("  docker run -v $(pwd)/input:/app/input -v $(pwd)/output:/app/output \\");
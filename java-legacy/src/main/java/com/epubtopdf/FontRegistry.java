@@ -0,0 +1,663 @@
+package com.epubtopdf;
+
+import com.openhtmltopdf.extend.FSCacheEx;
+import com.openhtmltopdf.extend.FSCacheValue;
+import com.openhtmltopdf.extend.impl.FSDefaultCacheStore;
+import com.openhtmltopdf.outputdevice.helper.BaseRendererBuilder.FontStyle;
+import com.openhtmltopdf.pdfboxout.PdfRendererBuilder;
+import org.apache.fontbox.ttf.NamingTable;
+import org.apache.fontbox.ttf.OS2WindowsMetricsTable;
+import org.apache.fontbox.ttf.OTFParser;
+import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TTFSubsetter;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Process-wide registry of the fonts handed to the renderer. Bundled, system and EPUB-embedded
+ * fonts are read, decoded and parsed once, and the decoded font data is shared by content hash
+ * across chapters and books. Books with the same fonts also share the renderer's font metrics,
+ * so layout does not reload a font just to measure text.
+ */
+public class FontRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(FontRegistry.class);
+    
+    private static final String BUNDLED_FONT = "/fonts/DejaVuSans.ttf";
+    private static final String BUNDLED_FAMILY = "DejaVu Sans";
+    /** Upper bound on the decoded font data kept for reuse */
+    private static final long MAX_CACHED_FONT_BYTES = 64L * 1024 * 1024;
+    /** Upper bound on the font sets whose metrics are kept */
+    private static final int MAX_METRICS_CACHES = 64;
+    private static final int WOFF_SIGNATURE = 0x774F4646;
+    private static final int WOFF_HEADER_BYTES = 44;
+    /** Largest font a WOFF file may decode to; the sizes in its header come from the book */
+    private static final int MAX_SFNT_BYTES = 64 * 1024 * 1024;
+    /** 'OTTO', the signature of OpenType fonts with CFF outlines */
+    private static final int OPEN_TYPE_CFF_SIGNATURE = 0x4F54544F;
+    
+    private static final Pattern FONT_FAMILY_PATTERN = Pattern.compile("font-family\\s*:\\s*([^;}]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SRC_PATTERN = Pattern.compile(
+        "url\\(\\s*([\"']?)([^\"')]+)\\1\\s*\\)(?:\\s*format\\(\\s*[\"']?([^\"')]+)[\"']?\\s*\\))?", Pattern.CASE_INSENSITIVE);
+    
+    private static final FontRegistry SHARED = new FontRegistry(defaultSystemFontDirectories());
+    
+    /**
+     * A font registered under a CSS family, weight and style
+     */
+    public static class FontFace {
+        private final String family;
+        private final int weight;
+        private final FontStyle style;
+        private final String hash;
+        private final byte[] data;
+        private final boolean embedSubset;
+        
+        FontFace(String family, int weight, FontStyle style, String hash, byte[] data) {
+            this(family, weight, style, hash, data, true);
+        }
+        
+        FontFace(String family, int weight, FontStyle style, String hash, byte[] data, boolean embedSubset) {
+            this.family = family;
+            this.weight = weight;
+            this.style = style;
+            this.hash = hash;
+            this.data = data;
+            this.embedSubset = embedSubset;
+        }
+        
+        public String getFamily() { return family; }
+        public int getWeight() { return weight; }
+        public FontStyle getStyle() { return style; }
+        /** Hash of the font file the face was loaded from */
+        public String getHash() { return hash; }
+        /** Decoded TrueType or OpenType data; shared, so it must not be modified */
+        public byte[] getData() { return data; }
+        /** Whether each document subsets the font to its own text; false once the face is already a subset */
+        public boolean isEmbedSubset() { return embedSubset; }
+        
+        /**
+         * Opens a fresh stream over the font data; the renderer closes each stream it is given
+         */
+        public InputStream openStream() {
+            return new ByteArrayInputStream(data);
+        }
+    }
+    
+    /**
+     * The fonts of one book, ready to be registered with each renderer that lays it out
+     */
+    public static class BookFonts {
+        private final List<FontFace> faces;
+        private final String key;
+        private final String sourceKey;
+        private final FSCacheEx<String, FSCacheValue> metricsCache;
+        
+        BookFonts(List<FontFace> faces, String key, String sourceKey, FSCacheEx<String, FSCacheValue> metricsCache) {
+            this.faces = faces;
+            this.key = key;
+            this.sourceKey = sourceKey;
+            this.metricsCache = metricsCache;
+        }
+        
+        public List<FontFace> getFaces() { return faces; }
+        
+        /** Hash of the families, styles and font data */
+        public String getKey() { return key; }
+        
+        /**
+         * Hash of the fonts these were subset from, or the same as {@link #getKey()} if they are not
+         * subsets. Render cache keys use it: the book-wide subset changes whenever a character is
+         * added anywhere in the book, but a chapter whose own text and styles are unchanged is
+         * still covered by the subset its cached pages embed.
+         */
+        public String getSourceKey() { return sourceKey; }
+        
+        public void applyTo(PdfRendererBuilder builder) {
+            builder.useCacheStore(PdfRendererBuilder.CacheStore.PDF_FONT_METRICS, metricsCache);
+            for (FontFace face : faces) {
+                builder.useFont(face::openStream, face.getFamily(), face.getWeight(), face.getStyle(), face.isEmbedSubset());
+            }
+        }
+    }
+    
+    /**
+     * A parsed system font, read from disk when a book first uses it
+     */
+    private static class SystemFont {
+        final Path file;
+        final String family;
+        final int weight;
+        final FontStyle style;
+        /** The loaded face and the modification time of the file it was read from, guarded by this font */
+        private FontFace face;
+        private FileTime faceModified;
+        
+        SystemFont(Path file, String family, int weight, FontStyle style) {
+            this.file = file;
+            this.family = family;
+            this.weight = weight;
+            this.style = style;
+        }
+    }
+    
+    private final List<Path> systemFontDirectories;
+    private final Map<String, byte[]> decodedFonts = new LinkedHashMap<>(16, 0.75f, true);
+    private long decodedFontBytes;
+    private final Map<String, FSCacheEx<String, FSCacheValue>> metricsCaches = new LinkedHashMap<String, FSCacheEx<String, FSCacheValue>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FSCacheEx<String, FSCacheValue>> eldest) {
+            return size() > MAX_METRICS_CACHES;
+        }
+    };
+    private volatile List<SystemFont> systemFonts;
+    private volatile FontFace bundledFont;
+    private volatile boolean bundledFontLoaded;
+    
+    /**
+     * @param systemFontDirectories directories searched for TrueType and OpenType fonts on first use
+     */
+    public FontRegistry(List<Path> systemFontDirectories) {
+        this.systemFontDirectories = systemFontDirectories;
+    }
+    
+    /**
+     * Returns the registry shared by every conversion in this JVM
+     */
+    public static FontRegistry shared() {
+        return SHARED;
+    }
+    
+    private static List<Path> defaultSystemFontDirectories() {
+        List<Path> directories = new ArrayList<>();
+        String home = System.getProperty("user.home");
+        directories.add(Paths.get("/usr/share/fonts"));
+        directories.add(Paths.get("/usr/local/share/fonts"));
+        directories.add(Paths.get(home, ".fonts"));
+        directories.add(Paths.get(home, ".local", "share", "fonts"));
+        directories.add(Paths.get("/Library/Fonts"));
+        directories.add(Paths.get("/System/Library/Fonts"));
+        if (System.getenv("WINDIR") != null) {
+            directories.add(Paths.get(System.getenv("WINDIR"), "Fonts"));
+        }
+        return directories;
+    }
+    
+    /**
+     * Collects the fonts a book needs: the faces declared by its @font-face rules, system fonts
+     * for the other families its stylesheets name, and the bundled fallback font
+     * @param cssFiles stylesheet contents keyed by manifest href
+     * @param fontFiles embedded font files keyed by manifest href
+     */
+    public BookFonts forBook(Map<String, String> cssFiles, Map<String, byte[]> fontFiles) {
+        Map<String, FontFace> faces = new LinkedHashMap<>();
+        Set<String> referencedFamilies = new HashSet<>();
+        for (Map.Entry<String, String> css : cssFiles.entrySet()) {
+            collectFontFaces(css.getKey(), css.getValue(), fontFiles, faces);
+            collectFamilies(css.getValue(), referencedFamilies);
+        }
+        
+        Set<String> bookFamilies = faces.values().stream()
+            .map(face -> face.getFamily().toLowerCase(Locale.ROOT))
+            .collect(Collectors.toSet());
+        for (SystemFont font : getSystemFonts()) {
+            String family = font.family.toLowerCase(Locale.ROOT);
+            if (referencedFamilies.contains(family) && !bookFamilies.contains(family)) {
+                FontFace face = loadSystemFont(font);
+                if (face != null) {
+                    faces.putIfAbsent(faceKey(face.getFamily(), face.getWeight(), face.getStyle()), face);
+                }
+            }
+        }
+        
+        FontFace bundled = getBundledFont();
+        if (bundled != null) {
+            faces.putIfAbsent(faceKey(bundled.getFamily(), bundled.getWeight(), bundled.getStyle()), bundled);
+        }
+        
+        logger.info("Registered {} font faces ({} embedded font files)", faces.size(), fontFiles.size());
+        return newBookFonts(new ArrayList<>(faces.values()), null);
+    }
+    
+    /**
+     * Subsets every TrueType face of a book to the given characters. Documents laid out with the
+     * result embed the faces as they are, so separately rendered chapters all carry the same
+     * font program and the merged PDF needs only one copy of it. Faces that cannot be subset
+     * here, such as CFF-based OpenType fonts, are still subset by each document.
+     * @param codePoints every character the book may render
+     */
+    public BookFonts subset(BookFonts fonts, Set<Integer> codePoints) {
+        List<FontFace> faces = new ArrayList<>();
+        for (FontFace face : fonts.getFaces()) {
+            FontFace subset = face.isEmbedSubset() ? subsetFace(face, codePoints) : null;
+            faces.add(subset != null ? subset : face);
+        }
+        return newBookFonts(faces, fonts.getSourceKey());
+    }
+    
+    private FontFace subsetFace(FontFace face, Set<Integer> codePoints) {
+        byte[] data = face.getData();
+        if (data.length >= 4 && ByteBuffer.wrap(data).getInt(0) == OPEN_TYPE_CFF_SIGNATURE) {
+            return null;
+        }
+        
+        try (TrueTypeFont font = new TTFParser(true).parse(new ByteArrayInputStream(data))) {
+            TTFSubsetter subsetter = new TTFSubsetter(font);
+            subsetter.addAll(codePoints);
+            // A tag derived from the subset's inputs keeps the font name stable between runs
+            subsetter.setPrefix(subsetTag(face.getHash(), codePoints));
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            subsetter.writeToStream(os);
+            byte[] subsetData = os.toByteArray();
+            
+            try (TrueTypeFont subsetFont = new TTFParser(true).parse(new ByteArrayInputStream(subsetData))) {
+                logger.info("Subset {} {} {} to {} of {} glyphs ({} KB of {} KB)", face.getFamily(), face.getWeight(),
+                    face.getStyle(), subsetFont.getNumberOfGlyphs(), font.getNumberOfGlyphs(),
+                    subsetData.length / 1024, data.length / 1024);
+            }
+            return new FontFace(face.getFamily(), face.getWeight(), face.getStyle(), hash(subsetData), subsetData, false);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not subset {} {} {}, leaving it to each document: {}", face.getFamily(), face.getWeight(),
+                face.getStyle(), e.getMessage());
+            return null;
+        }
+    }
+    
+    private static String subsetTag(String fontHash, Set<Integer> codePoints) {
+        MessageDigest digest = ResourceDeduplicator.newDigest();
+        digest.update(fontHash.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        for (int codePoint : new TreeSet<>(codePoints)) {
+            buffer.clear();
+            digest.update(buffer.putInt(codePoint).array());
+        }
+        byte[] hash = digest.digest();
+        StringBuilder tag = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            tag.append((char) ('A' + (hash[i] & 0xFF) % 26));
+        }
+        return tag.append('+').toString();
+    }
+    
+    /**
+     * @param sourceKey key of the fonts the faces were subset from, or null if they are not subsets
+     */
+    private BookFonts newBookFonts(List<FontFace> faces, String sourceKey) {
+        List<FontFace> bookFaces = Collections.unmodifiableList(faces);
+        RenderCache.KeyBuilder key = RenderCache.newKey();
+        for (FontFace face : bookFaces) {
+            key.add(faceKey(face.getFamily(), face.getWeight(), face.getStyle())).add(face.getHash());
+        }
+        String fontSetKey = key.build();
+        
+        FSCacheEx<String, FSCacheValue> metricsCache;
+        synchronized (metricsCaches) {
+            metricsCache = metricsCaches.computeIfAbsent(fontSetKey, k -> new FSDefaultCacheStore());
+        }
+        return new BookFonts(bookFaces, fontSetKey, sourceKey != null ? sourceKey : fontSetKey, metricsCache);
+    }
+    
+    private static String faceKey(String family, int weight, FontStyle style) {
+        return family.toLowerCase(Locale.ROOT) + "/" + weight + "/" + style;
+    }
+    
+    /**
+     * Adds a face for every @font-face rule of a stylesheet whose source is an embedded font
+     * in a supported format. The first rule for a family, weight and style wins.
+     */
+    private void collectFontFaces(String cssHref, String css, Map<String, byte[]> fontFiles, Map<String, FontFace> faces) {
+        for (String statement : StylesheetCompiler.splitStatements(css)) {
+            if (!statement.regionMatches(true, 0, "@font-face", 0, "@font-face".length())) {
+                continue;
+            }
+            
+            Map<String, String> descriptors = parseDescriptors(statement);
+            String family = unquote(descriptors.getOrDefault("font-family", ""));
+            String src = descriptors.get("src");
+            if (family.isEmpty() || src == null) {
+                continue;
+            }
+            int weight = parseWeight(descriptors.get("font-weight"));
+            FontStyle style = parseStyle(descriptors.get("font-style"));
+            String key = faceKey(family, weight, style);
+            if (faces.containsKey(key)) {
+                continue;
+            }
+            
+            Matcher matcher = SRC_PATTERN.matcher(src);
+            while (matcher.find()) {
+                String format = matcher.group(3) != null ? matcher.group(3).toLowerCase(Locale.ROOT) : "";
+                if (format.equals("woff2") || format.equals("embedded-opentype") || format.equals("svg")) {
+                    continue;
+                }
+                String href = EpubArchive.resolveHref(cssHref, matcher.group(2).trim());
+                byte[] source = href != null ? fontFiles.get(href) : null;
+                if (source == null) {
+                    continue;
+                }
+                
+                try {
+                    String hash = hash(source);
+                    faces.put(key, new FontFace(family, weight, style, hash, decode(hash, source)));
+                    break;
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Could not load font {} for family {}: {}", href, family, e.getMessage());
+                }
+            }
+        }
+    }
+    
+    static Map<String, String> parseDescriptors(String fontFaceRule) {
+        Map<String, String> descriptors = new LinkedHashMap<>();
+        int open = fontFaceRule.indexOf('{');
+        int close = fontFaceRule.lastIndexOf('}');
+        if (open < 0 || close < open) {
+            return descriptors;
+        }
+        for (String declaration : fontFaceRule.substring(open + 1, close).split(";")) {
+            int colon = declaration.indexOf(':');
+            if (colon > 0) {
+                descriptors.put(declaration.substring(0, colon).trim().toLowerCase(Locale.ROOT), declaration.substring(colon + 1).trim());
+            }
+        }
+        return descriptors;
+    }
+    
+    static void collectFamilies(String css, Set<String> families) {
+        Matcher matcher = FONT_FAMILY_PATTERN.matcher(css);
+        while (matcher.find()) {
+            for (String family : matcher.group(1).replace("!important", "").split(",")) {
+                families.add(unquote(family).toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+    
+    static String unquote(String value) {
+        String trimmed = value.trim();
+        if (trimmed.length() >= 2 && (trimmed.charAt(0) == '"' || trimmed.charAt(0) == '\'')
+                && trimmed.charAt(trimmed.length() - 1) == trimmed.charAt(0)) {
+            return trimmed.substring(1, trimmed.length() - 1).trim();
+        }
+        return trimmed;
+    }
+    
+    private static int parseWeight(String weight) {
+        if (weight == null || weight.equalsIgnoreCase("normal")) {
+            return 400;
+        }
+        if (weight.equalsIgnoreCase("bold")) {
+            return 700;
+        }
+        try {
+            return Integer.parseInt(weight.trim());
+        } catch (NumberFormatException e) {
+            return 400;
+        }
+    }
+    
+    private static FontStyle parseStyle(String style) {
+        if (style == null) {
+            return FontStyle.NORMAL;
+        }
+        switch (style.trim().toLowerCase(Locale.ROOT)) {
+            case "italic":
+                return FontStyle.ITALIC;
+            case "oblique":
+                return FontStyle.OBLIQUE;
+            default:
+                return FontStyle.NORMAL;
+        }
+    }
+    
+    /**
+     * Returns the decoded data of a font file, decoding it only if no file with the same hash was seen before
+     */
+    private byte[] decode(String hash, byte[] source) throws IOException {
+        synchronized (decodedFonts) {
+            byte[] cached = decodedFonts.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        
+        byte[] data = isWoff(source) ? decodeWoff(source) : source;
+        synchronized (decodedFonts) {
+            if (decodedFonts.put(hash, data) == null) {
+                decodedFontBytes += data.length;
+            }
+            // Evict the least recently used fonts; faces already handed out keep their data
+            Iterator<byte[]> eldest = decodedFonts.values().iterator();
+            while (decodedFontBytes > MAX_CACHED_FONT_BYTES && decodedFonts.size() > 1) {
+                decodedFontBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+        return data;
+    }
+    
+    private static String hash(byte[] data) {
+        MessageDigest digest = ResourceDeduplicator.newDigest();
+        return new BigInteger(1, digest.digest(data)).toString(16);
+    }
+    
+    private static boolean isWoff(byte[] data) {
+        return data.length >= 44 && ByteBuffer.wrap(data).getInt(0) == WOFF_SIGNATURE;
+    }
+    
+    /**
+     * Rebuilds the TrueType or OpenType file wrapped by a WOFF 1.0 file, inflating each table
+     * that was stored compressed. The header and table directory are checked before anything is
+     * allocated, so a malformed or crafted file fails with an IOException instead of claiming
+     * more memory than its tables can fill.
+     */
+    static byte[] decodeWoff(byte[] woff) throws IOException {
+        if (woff.length < WOFF_HEADER_BYTES) {
+            throw new IOException("Truncated WOFF header");
+        }
+        ByteBuffer in = ByteBuffer.wrap(woff);
+        int flavor = in.getInt(4);
+        int numTables = in.getShort(12) & 0xFFFF;
+        int totalSfntSize = in.getInt(16);
+        if (WOFF_HEADER_BYTES + numTables * 20 > woff.length) {
+            throw new IOException("Truncated WOFF table directory");
+        }
+        
+        // The decoded font is the sfnt table directory followed by every table padded to 4 bytes
+        long sfntSize = 12 + numTables * 16L;
+        for (int i = 0; i < numTables; i++) {
+            int origLength = in.getInt(WOFF_HEADER_BYTES + i * 20 + 12);
+            if (origLength < 0) {
+                throw new IOException("Negative WOFF table length");
+            }
+            sfntSize += (origLength + 3L) & ~3L;
+        }
+        if (totalSfntSize < 12 + numTables * 16 || totalSfntSize > sfntSize || totalSfntSize > MAX_SFNT_BYTES) {
+            throw new IOException("Invalid WOFF font size " + totalSfntSize + " for tables of " + sfntSize + " bytes");
+        }
+        
+        ByteBuffer out = ByteBuffer.allocate(totalSfntSize);
+        int entrySelector = 31 - Integer.numberOfLeadingZeros(Math.max(1, numTables));
+        int searchRange = (1 << entrySelector) * 16;
+        out.putInt(flavor);
+        out.putShort((short) numTables);
+        out.putShort((short) searchRange);
+        out.putShort((short) entrySelector);
+        out.putShort((short) (numTables * 16 - searchRange));
+        
+        // Table records are sorted by tag in both formats, so they can be copied in order
+        int dataOffset = 12 + numTables * 16;
+        Inflater inflater = new Inflater();
+        try {
+            for (int i = 0; i < numTables; i++) {
+                int entry = WOFF_HEADER_BYTES + i * 20;
+                int tag = in.getInt(entry);
+                int offset = in.getInt(entry + 4);
+                int compLength = in.getInt(entry + 8);
+                int origLength = in.getInt(entry + 12);
+                int checksum = in.getInt(entry + 16);
+                if (offset < 0 || compLength < 0 || (long) offset + compLength > woff.length
+                        || (long) dataOffset + origLength > totalSfntSize) {
+                    throw new IOException("WOFF table out of bounds");
+                }
+                
+                out.putInt(12 + i * 16, tag);
+                out.putInt(16 + i * 16, checksum);
+                out.putInt(20 + i * 16, dataOffset);
+                out.putInt(24 + i * 16, origLength);
+                
+                if (compLength < origLength) {
+                    inflater.reset();
+                    inflater.setInput(woff, offset, compLength);
+                    int inflated = inflater.inflate(out.array(), dataOffset, origLength);
+                    if (inflated != origLength) {
+                        throw new IOException("WOFF table inflated to " + inflated + " bytes instead of " + origLength);
+                    }
+                } else {
+                    System.arraycopy(woff, offset, out.array(), dataOffset, origLength);
+                }
+                dataOffset += (origLength + 3) & ~3;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt WOFF table", e);
+        } finally {
+            inflater.end();
+        }
+        return out.array();
+    }
+    
+    /**
+     * Returns the fonts installed on the system, scanning the font directories on first use
+     */
+    private List<SystemFont> getSystemFonts() {
+        List<SystemFont> fonts = systemFonts;
+        if (fonts == null) {
+            synchronized (this) {
+                if (systemFonts == null) {
+                    systemFonts = scanSystemFonts();
+                }
+                fonts = systemFonts;
+            }
+        }
+        return fonts;
+    }
+    
+    private List<SystemFont> scanSystemFonts() {
+        long start = System.nanoTime();
+        List<SystemFont> fonts = new ArrayList<>();
+        for (Path directory : systemFontDirectories) {
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.filter(Files::isRegularFile).forEach(file -> {
+                    SystemFont font = parseSystemFont(file);
+                    if (font != null) {
+                        fonts.add(font);
+                    }
+                });
+            } catch (IOException | UncheckedIOException e) {
+                logger.warn("Could not scan font directory {}: {}", directory, e.getMessage());
+            }
+        }
+        logger.info("Found {} system fonts in {} ms", fonts.size(), (System.nanoTime() - start) / 1_000_000);
+        return Collections.unmodifiableList(fonts);
+    }
+    
+    private static SystemFont parseSystemFont(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean openType = name.endsWith(".otf");
+        if (!openType && !name.endsWith(".ttf")) {
+            return null;
+        }
+        
+        // Only the naming and OS/2 tables are read; glyphs are parsed when the font is embedded
+        try (TrueTypeFont font = openType ? new OTFParser(false, true).parse(file.toFile()) : new TTFParser(false, true).parse(file.toFile())) {
+            NamingTable naming = font.getNaming();
+            if (naming == null || naming.getFontFamily() == null) {
+                return null;
+            }
+            OS2WindowsMetricsTable os2 = font.getOS2Windows();
+            int weight = os2 != null && os2.getWeightClass() > 0 ? os2.getWeightClass() : 400;
+            boolean italic = os2 != null && (os2.getFsSelection() & 1) != 0;
+            return new SystemFont(file, naming.getFontFamily(), weight, italic ? FontStyle.ITALIC : FontStyle.NORMAL);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Skipping unreadable font {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the face of a system font, shared by every book that uses it. The file is read again
+     * only if it has changed since it was loaded.
+     */
+    private FontFace loadSystemFont(SystemFont font) {
+        synchronized (font) {
+            try {
+                FileTime modified = Files.getLastModifiedTime(font.file);
+                if (font.face == null || !modified.equals(font.faceModified)) {
+                    byte[] source = Files.readAllBytes(font.file);
+                    String hash = hash(source);
+                    font.face = new FontFace(font.family, font.weight, font.style, hash, decode(hash, source));
+                    font.faceModified = modified;
+                }
+                return font.face;
+            } catch (IOException e) {
+                logger.warn("Could not read system font {}: {}", font.file, e.getMessage());
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * Returns the font bundled with the converter, or null if the build does not include one
+     */
+    private FontFace getBundledFont() {
+        if (!bundledFontLoaded) {
+            synchronized (this) {
+                if (!bundledFontLoaded) {
+                    try (InputStream is = FontRegistry.class.getResourceAsStream(BUNDLED_FONT)) {
+                        if (is != null) {
+                            byte[] source = is.readAllBytes();
+                            String hash = hash(source);
+                            bundledFont = new FontFace(BUNDLED_FAMILY, 400, FontStyle.NORMAL, hash, decode(hash, source));
+                        }
+                    } catch (IOException e) {
+                        logger.warn("Could not load bundled font {}", BUNDLED_FONT, e);
+                    }
+                    bundledFontLoaded = true;
+                }
+            }
+        }
+        return bundledFont;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+package com.epubtopdf;
+
+import org.apache.fontbox.ttf.OTFParser;
+import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDFontDescriptor;
+import org.apache.pdfbox.pdmodel.font.PDFontFactory;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lists the fonts a finished PDF embeds with the size and glyph count of each embedded font
+ * program and the number of pages using it, to show which fonts make up the output size.
+ */
+public class FontReport {
+    private static final Logger logger = LoggerFactory.getLogger(FontReport.class);
+    
+    private static final String SUFFIX = ".fonts.tsv";
+    
+    /**
+     * One font object of the document
+     */
+    public static class Entry {
+        private final String name;
+        private final String type;
+        private final long embeddedBytes;
+        private final int glyphs;
+        private int pages;
+        
+        Entry(String name, String type, long embeddedBytes, int glyphs) {
+            this.name = name;
+            this.type = type;
+            this.embeddedBytes = embeddedBytes;
+            this.glyphs = glyphs;
+        }
+        
+        public String getName() { return name; }
+        /** Font type, with the descendant font's type for composite fonts */
+        public String getType() { return type; }
+        /** Encoded size of the embedded font program, or 0 if the font is not embedded */
+        public long getEmbeddedBytes() { return embeddedBytes; }
+        /** Glyphs in the embedded font program, or -1 if it is not embedded or could not be read */
+        public int getGlyphs() { return glyphs; }
+        public int getPages() { return pages; }
+    }
+    
+    private FontReport() {
+    }
+    
+    /**
+     * Returns the path of the report belonging to a PDF
+     */
+    public static Path pathFor(String pdfPath) {
+        return Paths.get(pdfPath + SUFFIX);
+    }
+    
+    /**
+     * Collects one entry per font object used by the document's pages, largest embedded font first
+     */
+    public static List<Entry> collect(PDDocument document) throws IOException {
+        Map<COSDictionary, Entry> entries = new LinkedHashMap<>();
+        for (PDPage page : document.getPages()) {
+            Set<COSDictionary> pageFonts = Collections.newSetFromMap(new IdentityHashMap<>());
+            COSBase resources = page.getCOSObject().getDictionaryObject(COSName.RESOURCES);
+            if (resources instanceof COSDictionary) {
+                collectFonts((COSDictionary) resources, pageFonts, Collections.newSetFromMap(new IdentityHashMap<>()));
+            }
+            for (COSDictionary font : pageFonts) {
+                Entry entry = entries.get(font);
+                if (entry == null) {
+                    entry = describe(font);
+                    entries.put(font, entry);
+                }
+                entry.pages++;
+            }
+        }
+        
+        List<Entry> report = new ArrayList<>(entries.values());
+        report.sort((a, b) -> Long.compare(b.getEmbeddedBytes(), a.getEmbeddedBytes()));
+        return report;
+    }
+    
+    private static void collectFonts(COSDictionary resources, Set<COSDictionary> fonts, Set<COSDictionary> visitedResources) {
+        if (!visitedResources.add(resources)) {
+            return;
+        }
+        
+        COSBase fontDictionary = resources.getDictionaryObject(COSName.FONT);
+        if (fontDictionary instanceof COSDictionary) {
+            for (COSBase value : ((COSDictionary) fontDictionary).getValues()) {
+                COSBase font = value instanceof COSObject ? ((COSObject) value).getObject() : value;
+                if (font instanceof COSDictionary) {
+                    fonts.add((COSDictionary) font);
+                }
+            }
+        }
+        
+        COSBase xObjects = resources.getDictionaryObject(COSName.XOBJECT);
+        if (xObjects instanceof COSDictionary) {
+            for (COSBase value : ((COSDictionary) xObjects).getValues()) {
+                COSBase xObject = value instanceof COSObject ? ((COSObject) value).getObject() : value;
+                if (xObject instanceof COSStream && COSName.FORM.equals(((COSStream) xObject).getCOSName(COSName.SUBTYPE))) {
+                    COSBase formResources = ((COSStream) xObject).getDictionaryObject(COSName.RESOURCES);
+                    if (formResources instanceof COSDictionary) {
+                        collectFonts((COSDictionary) formResources, fonts, visitedResources);
+                    }
+                }
+            }
+        }
+    }
+    
+    private static Entry describe(COSDictionary fontDictionary) throws IOException {
+        PDFont font = PDFontFactory.createFont(fontDictionary);
+        String type = font.getSubType();
+        if (font instanceof PDType0Font && ((PDType0Font) font).getDescendantFont() != null) {
+            type += "/" + ((PDType0Font) font).getDescendantFont().getCOSObject().getNameAsString(COSName.SUBTYPE);
+        }
+        
+        PDFontDescriptor descriptor = font.getFontDescriptor();
+        PDStream fontFile = null;
+        boolean trueType = false;
+        if (descriptor != null) {
+            fontFile = descriptor.getFontFile2();
+            trueType = fontFile != null;
+            if (fontFile == null) {
+                fontFile = descriptor.getFontFile3() != null ? descriptor.getFontFile3() : descriptor.getFontFile();
+            }
+        }
+        if (fontFile == null) {
+            return new Entry(font.getName(), type, 0, -1);
+        }
+        
+        COSStream stream = fontFile.getCOSObject();
+        boolean openType = COSName.getPDFName("OpenType").equals(stream.getCOSName(COSName.SUBTYPE));
+        int glyphs = -1;
+        if (trueType || openType) {
+            try (InputStream is = fontFile.createInputStream();
+                 TrueTypeFont program = trueType ? new TTFParser(true).parse(is) : new OTFParser(true).parse(is)) {
+                glyphs = program.getNumberOfGlyphs();
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Could not read the embedded program of {}: {}", font.getName(), e.getMessage());
+            }
+        }
+        return new Entry(font.getName(), type, stream.getLength(), glyphs);
+    }
+    
+    /**
+     * Writes one tab-separated line per font and logs the total size of the embedded fonts
+     */
+    public static void write(List<Entry> entries, Path reportFile) throws IOException {
+        long totalBytes = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8)) {
+            writer.write("font\ttype\tembedded_bytes\tglyphs\tpages\n");
+            for (Entry entry : entries) {
+                writer.write(entry.getName() + "\t" + entry.getType() + "\t" + entry.getEmbeddedBytes()
+                    + "\t" + (entry.getGlyphs() >= 0 ? Integer.toString(entry.getGlyphs()) : "") + "\t" + entry.getPages() + "\n");
+                totalBytes += entry.getEmbeddedBytes();
+            }
+        }
+        logger.info("{} fonts embed {} KB of font programs, see {}", entries.size(), totalBytes / 1024, reportFile);
+    }
+}
\ No newline at end of file
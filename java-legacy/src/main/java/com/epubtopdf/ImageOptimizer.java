@@ -0,0 +1,216 @@
+package com.epubtopdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downsamples images to the resolution they are printed at and recompresses them.
+ * Images that do not get smaller are left untouched. An image is never made narrower than the
+ * CSS pixels it is laid out at: images without an explicit size are laid out at their pixel
+ * size, so anything smaller would change the layout rather than just the resolution.
+ */
+public class ImageOptimizer {
+    private static final Logger logger = LoggerFactory.getLogger(ImageOptimizer.class);
+    
+    /** CSS pixels per inch, used to turn rendered widths into physical sizes */
+    private static final double CSS_PIXELS_PER_INCH = 96.0;
+    
+    private final int targetDpi;
+    private final float jpegQuality;
+    private final int threads;
+    
+    /**
+     * @param targetDpi output resolution images are downsampled to
+     * @param jpegQuality JPEG compression quality between 0 and 1
+     * @param threads number of images processed concurrently
+     */
+    public ImageOptimizer(int targetDpi, float jpegQuality, int threads) {
+        this.targetDpi = targetDpi;
+        this.jpegQuality = jpegQuality;
+        this.threads = Math.max(1, threads);
+    }
+    
+    /**
+     * Optimizes the given images in parallel
+     * @param images the image store to read from
+     * @param hrefs the images to optimize
+     * @param renderedWidths largest width in CSS pixels each image is rendered at
+     * @param defaultWidth rendered width for images without an entry in renderedWidths
+     * @return replacement bytes for the images that got smaller, keyed by href
+     */
+    public Map<String, byte[]> optimize(Map<String, byte[]> images, Collection<String> hrefs,
+                                        Map<String, Integer> renderedWidths, int defaultWidth) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "image-optimizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        try {
+            Map<String, Future<byte[]>> futures = new HashMap<>();
+            for (String href : hrefs) {
+                int width = renderedWidths.getOrDefault(href, defaultWidth);
+                futures.put(href, executor.submit(ConversionMetrics.propagate(() -> optimizeImage(href, images.get(href), width))));
+            }
+            
+            Map<String, byte[]> optimized = new HashMap<>();
+            long bytesBefore = 0;
+            long bytesAfter = 0;
+            for (Map.Entry<String, Future<byte[]>> future : futures.entrySet()) {
+                byte[] result = future.getValue().get();
+                if (result != null) {
+                    bytesBefore += images.get(future.getKey()).length;
+                    bytesAfter += result.length;
+                    optimized.put(future.getKey(), result);
+                }
+            }
+            
+            logger.info("Optimized {} of {} images for {} dpi: {} KB -> {} KB",
+                optimized.size(), futures.size(), targetDpi, bytesBefore / 1024, bytesAfter / 1024);
+            return optimized;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while optimizing images", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error optimizing images", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Returns the width in pixels an image laid out at the given CSS width is downsampled to
+     */
+    static int targetWidth(int renderedWidth, int targetDpi) {
+        return Math.max(renderedWidth, (int) Math.ceil(renderedWidth / CSS_PIXELS_PER_INCH * targetDpi));
+    }
+    
+    /**
+     * Returns smaller bytes for a single image, or null if it should be kept as it is
+     */
+    private byte[] optimizeImage(String href, byte[] data, int renderedWidth) {
+        if (data == null) {
+            return null;
+        }
+        
+        String format = formatOf(href);
+        if (format == null) {
+            return null;
+        }
+        
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            if (image == null) {
+                return null;
+            }
+            
+            int targetWidth = targetWidth(renderedWidth, targetDpi);
+            boolean downsample = image.getWidth() > targetWidth;
+            if (!downsample && !"jpeg".equals(format)) {
+                return null;
+            }
+            
+            if (downsample) {
+                int targetHeight = Math.max(1, (int) Math.round((double) image.getHeight() * targetWidth / image.getWidth()));
+                image = scale(image, targetWidth, targetHeight);
+            }
+            
+            byte[] encoded = "jpeg".equals(format) ? encodeJpeg(image) : encodePng(image);
+            return encoded != null && encoded.length < data.length ? encoded : null;
+        } catch (Exception e) {
+            // Unsupported variants such as CMYK JPEGs are embedded as they are
+            logger.warn("Could not optimize image {}: {}", href, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Scales down in steps of at most one half, which keeps bilinear filtering from aliasing
+     */
+    private BufferedImage scale(BufferedImage image, int targetWidth, int targetHeight) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            
+            BufferedImage step = new BufferedImage(width, height, type);
+            Graphics2D graphics = step.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = step;
+        } while (width != targetWidth || height != targetHeight);
+        
+        return current;
+    }
+    
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+        if (image.getColorModel().hasAlpha()) {
+            return null;
+        }
+        
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            return null;
+        }
+        
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(os)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return os.toByteArray();
+    }
+    
+    private byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        return ImageIO.write(image, "png", os) ? os.toByteArray() : null;
+    }
+    
+    /**
+     * Returns the ImageIO format of an image href, or null if it is not optimized
+     */
+    private static String formatOf(String href) {
+        String name = href.toLowerCase();
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+            return "jpeg";
+        } else if (name.endsWith(".png")) {
+            return "png";
+        }
+        return null;
+    }
+}
\ No newline at end of file
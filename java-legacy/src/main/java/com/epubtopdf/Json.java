@@ -0,0 +1,48 @@
+package com.epubtopdf;
+
+/**
+ * Helpers for the small JSON documents the converter writes by hand
+ */
+final class Json {
+    
+    private Json() {
+    }
+    
+    /**
+     * Returns the text as a quoted JSON string, or null as the JSON literal
+     */
+    static String quote(String text) {
+        if (text == null) {
+            return "null";
+        }
+        
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
\ No newline at end of file
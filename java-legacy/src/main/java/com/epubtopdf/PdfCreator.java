@@ -1,58 +1,189 @@
 package com.epubtopdf;
 
+import com.openhtmltopdf.pdfboxout.PdfBoxRenderer;
 import com.openhtmltopdf.pdfboxout.PdfRendererBuilder;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.multipdf.PageExtractor;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDPageFitDestination;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.jsoup.helper.W3CDom;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Base64;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Handles PDF creation from EPUB content using OpenHTML to PDF
  */
 public class PdfCreator {
     private static final Logger logger = LoggerFactory.getLogger(PdfCreator.class);
+    private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+    
+    private static final double CSS_PIXELS_PER_MM = 96 / 25.4;
+    /** Page sizes of the CSS size keywords, width and height in millimetres */
+    private static final Map<String, double[]> PAGE_SIZES_MM = Map.of(
+        "a3", new double[] {297, 420},
+        "a4", new double[] {210, 297},
+        "a5", new double[] {148, 210},
+        "b4", new double[] {250, 353},
+        "b5", new double[] {176, 250},
+        "letter", new double[] {215.9, 279.4},
+        "legal", new double[] {215.9, 355.6},
+        "ledger", new double[] {279.4, 431.8});
+    private static final Pattern CSS_LENGTH = Pattern.compile("(-?[0-9]*\\.?[0-9]+)(px|pt|pc|in|cm|mm|q)?");
+    private static final String ICON_IMAGE_CLASS = "twoheader-icon-para-img";
+    private static final int ICON_MAX_WIDTH_PX = 100;
+    private static final Pattern STYLE_WIDTH_PX = Pattern.compile("(?:^|;)\\s*width\\s*:\\s*([0-9.]+)px");
+    /** Characters added by list markers, quotes and other generated content rather than the chapter text */
+    private static final String GENERATED_CHARACTERS = "\u00A0\u00AB\u00B7\u00BB\u2013\u2014\u2018\u2019\u201C\u201D\u2022\u2026\u25AA\u25E6";
+    /** Declarations whose strings become generated text */
+    private static final Pattern GENERATED_TEXT_PATTERN = Pattern.compile("(?<![\\w-])(?:content|quotes)\\s*:\\s*([^;}]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CSS_STRING = Pattern.compile("\"((?:\\\\.|[^\"\\\\])*)\"|'((?:\\\\.|[^'\\\\])*)'");
+    private static final Pattern CSS_ESCAPE = Pattern.compile("\\\\(?:([0-9a-fA-F]{1,6})\\s?|(.))");
+    /** Counter styles with non-Latin digits, and the first and last of their characters */
+    private static final Map<String, int[]> COUNTER_STYLE_RANGES = Map.of(
+        "lower-greek", new int[] {0x03B1, 0x03C9},
+        "armenian", new int[] {0x0531, 0x0556},
+        "upper-armenian", new int[] {0x0531, 0x0556},
+        "lower-armenian", new int[] {0x0561, 0x0586},
+        "georgian", new int[] {0x10D0, 0x10F6},
+        "hebrew", new int[] {0x05D0, 0x05EA});
+    private static final Pattern COUNTER_STYLE_PATTERN = Pattern.compile(
+        "(?<![\\w-])(" + String.join("|", COUNTER_STYLE_RANGES.keySet()) + ")(?![\\w-])", Pattern.CASE_INSENSITIVE);
+    
+    /**
+     * Writes a complete PDF to the given stream
+     */
+    private interface PdfWriter {
+        void writeTo(OutputStream os) throws IOException;
+    }
+    
+    private final boolean segmentedRendering;
+    private final int chaptersPerSegment;
+    private final int renderThreads;
+    private final long maxMainMemoryBytes;
+    private final File scratchDirectory;
+    private final int imageDpi;
+    private final float jpegQuality;
+    private final RenderCache renderCache;
+    private final boolean incremental;
+    private final String previousPdfPath;
+    private final boolean fontReport;
+    private final ConversionMetrics metrics;
+    private final Trace trace;
+    private final Diagnostics diagnostics;
+    
+    public PdfCreator() {
+        this(new ConversionOptions());
+    }
+    
+    public PdfCreator(ConversionOptions options) {
+        this(options, new ConversionMetrics());
+    }
+    
+    /**
+     * Creates a PDF creator that records the time and allocation of each stage in the given metrics
+     */
+    public PdfCreator(ConversionOptions options, ConversionMetrics metrics) {
+        this(options, metrics, Diagnostics.DISABLED);
+    }
+    
+    /**
+     * Creates a PDF creator that also saves the HTML it renders to the given diagnostics
+     */
+    public PdfCreator(ConversionOptions options, ConversionMetrics metrics, Diagnostics diagnostics) {
+        this.metrics = metrics;
+        this.trace = metrics.getTrace();
+        this.diagnostics = diagnostics;
+        this.renderThreads = options.getRenderThreads();
+        this.incremental = options.isIncremental();
+        this.segmentedRendering = options.isSegmentedRendering() || renderThreads > 1 || options.getCacheDirectory() != null || incremental;
+        this.chaptersPerSegment = options.getChaptersPerSegment();
+        this.maxMainMemoryBytes = options.getMaxMainMemoryBytes();
+        this.scratchDirectory = options.getScratchDirectory() != null ? new File(options.getScratchDirectory()) : null;
+        this.imageDpi = options.getImageDpi();
+        this.jpegQuality = options.getJpegQuality();
+        this.renderCache = options.getCacheDirectory() != null
+            ? new RenderCache(Paths.get(options.getCacheDirectory()), options.getCacheMaxBytes())
+            : null;
+        this.previousPdfPath = options.getPreviousPdf();
+        this.fontReport = options.isFontReport();
+    }
     
     /**
      * Creates a PDF from an EPUB book
      */
     public void createPdf(EpubReader.EpubBook epubBook, String outputPath) throws IOException {
+        if (segmentedRendering) {
+            createSegmentedPdf(epubBook, outputPath);
+            return;
+        }
+        
         logger.info("Creating PDF from EPUB book");
         
         // Build the HTML document
-        String htmlContent = buildHtmlDocument(epubBook);
+        Map<String, String> canonicalImages = metrics.measure(ConversionMetrics.IMAGES,
+            () -> ResourceDeduplicator.canonicalImageHrefs(epubBook.getImages()));
+        StylesheetCompiler stylesheets = metrics.measure(ConversionMetrics.CSS, () -> new StylesheetCompiler(epubBook.getCssFiles()));
+        EpubStreamFactory streamFactory = metrics.measure(ConversionMetrics.IMAGES,
+            () -> createStreamFactory(epubBook, canonicalImages, stylesheets));
+        FontRegistry.BookFonts fonts = metrics.measure(ConversionMetrics.FONTS,
+            () -> FontRegistry.shared().forBook(epubBook.getCssFiles(), epubBook.getFonts()));
+        org.jsoup.nodes.Document document = metrics.measure(ConversionMetrics.HTML_BUILD,
+            () -> buildHtmlDocument(epubBook, stylesheets, createNormalizer(canonicalImages)));
         
-        // Save debug HTML for inspection
-        saveDebugHtml(htmlContent, outputPath);
+        saveDiagnosticHtml(document, "generated.html");
+        checkInterrupted();
         
-        // Create PDF using openhtmltopdf
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-            PdfRendererBuilder builder = new PdfRendererBuilder();
-            builder.useFastMode();
-            builder.withHtmlContent(htmlContent, null);
-            builder.toStream(os);
+        // Create PDF using openhtmltopdf, streaming it straight into the output file
+        try {
+            writeAtomically(outputPath, os -> {
+                PdfRendererBuilder builder = createRendererBuilder(streamFactory, fonts, document);
+                builder.toStream(os);
+                render(builder);
+            });
             
-            // Add font from system resources
-            try (InputStream fontStream = getClass().getResourceAsStream("/fonts/DejaVuSans.ttf")) {
-                if (fontStream != null) {
-                    builder.useFont(() -> fontStream, "DejaVu Sans");
+            if (fontReport) {
+                try (PDDocument output = PDDocument.load(new File(outputPath), MemoryUsageSetting.setupTempFileOnly())) {
+                    writeFontReport(output, outputPath);
                 }
-            } catch (Exception e) {
-                logger.warn("Could not load font", e);
             }
-            
-            builder.run();
-            
-            // Write the PDF to file
-            Path outputFile = Paths.get(outputPath);
-            Files.write(outputFile, os.toByteArray());
-            
+            deleteSegmentManifest(outputPath);
             logger.info("PDF created successfully: {}", outputPath);
             
         } catch (Exception e) {
@@ -61,280 +192,926 @@ public class PdfCreator {
         }
     }
     
-    private void saveDebugHtml(String htmlContent, String outputPath) {
-        try {
-            // Create debug directory
-            Path debugDir = Paths.get("debug");
-            if (!Files.exists(debugDir)) {
-                Files.createDirectories(debugDir);
+    /**
+     * Creates the PDF by laying out the title page and each group of chapters as its own
+     * document and appending the resulting pages in spine order. Layout memory is bounded by
+     * the largest segment, and a segment that fails to render is replaced by its plain text
+     * instead of aborting the whole conversion. With more than one render thread the segments
+     * are laid out concurrently, but they are always appended in spine order. In incremental
+     * mode, segments whose inputs are unchanged since the previous conversion reuse its pages.
+     */
+    private void createSegmentedPdf(EpubReader.EpubBook epubBook, String outputPath) throws IOException {
+        List<List<EpubReader.Chapter>> segments = splitIntoSegments(epubBook.getChapters());
+        logger.info("Creating PDF from EPUB book in {} chapter segments on {} threads", segments.size(), renderThreads);
+        
+        Map<String, String> canonicalImages = metrics.measure(ConversionMetrics.IMAGES,
+            () -> ResourceDeduplicator.canonicalImageHrefs(epubBook.getImages()));
+        StylesheetCompiler stylesheets = metrics.measure(ConversionMetrics.CSS, () -> new StylesheetCompiler(epubBook.getCssFiles()));
+        EpubStreamFactory streamFactory = metrics.measure(ConversionMetrics.IMAGES,
+            () -> createStreamFactory(epubBook, canonicalImages, stylesheets));
+        XhtmlNormalizer normalizer = createNormalizer(canonicalImages);
+        // Every segment embeds the same book-wide subsets, which the merged document then shares
+        FontRegistry.BookFonts fonts = metrics.measure(ConversionMetrics.FONTS, () -> FontRegistry.shared().subset(
+            FontRegistry.shared().forBook(epubBook.getCssFiles(), epubBook.getFonts()),
+            collectCodePoints(epubBook, stylesheets.compile(linkedStylesheets(epubBook, epubBook.getChapters())))));
+        PreviousOutput previous = incremental ? PreviousOutput.open(previousPdfPath != null ? previousPdfPath : outputPath) : null;
+        AtomicInteger failedSegments = new AtomicInteger();
+        // Task 0 is the title page, task i + 1 is segment i
+        String[] segmentKeys = new String[segments.size() + 1];
+        int[] segmentPages = new int[segments.size() + 1];
+        List<Callable<byte[]>> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            org.jsoup.nodes.Document document;
+            try (ConversionMetrics.Span span = metrics.start(ConversionMetrics.HTML_BUILD)) {
+                document = createHtmlDocument(epubBook, stylesheets, linkedStylesheets(epubBook, epubBook.getChapters()));
+                appendTitlePage(document.body(), epubBook);
+            }
+            saveDiagnosticHtml(document, "segment-000.html");
+            return renderOrReuse(streamFactory, fonts, document, previous, segmentKeys, 0);
+        });
+        for (int i = 0; i < segments.size(); i++) {
+            List<EpubReader.Chapter> segment = segments.get(i);
+            int segmentNumber = i + 1;
+            tasks.add(() -> {
+                try {
+                    org.jsoup.nodes.Document document;
+                    try (ConversionMetrics.Span span = metrics.start(ConversionMetrics.HTML_BUILD)) {
+                        document = createHtmlDocument(epubBook, stylesheets, linkedStylesheets(epubBook, segment));
+                        appendChapters(document.body(), segment, normalizer);
+                    }
+                    saveDiagnosticHtml(document, String.format("segment-%03d.html", segmentNumber));
+                    return renderOrReuse(streamFactory, fonts, document, previous, segmentKeys, segmentNumber);
+                } catch (Exception e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    // Fallback pages are never reused, so the segment is retried next time
+                    segmentKeys[segmentNumber] = null;
+                    failedSegments.incrementAndGet();
+                    logger.error("Error rendering segment {} of {}, falling back to plain text", segmentNumber, segments.size(), e);
+                    return renderFallbackSegment(epubBook, streamFactory, fonts, stylesheets, segment);
+                }
+            });
+        }
+        
+        PDFMergerUtility merger = new PDFMergerUtility();
+        try (PreviousOutput previousOutput = previous; PDDocument destination = new PDDocument(createMemoryUsageSetting())) {
+            if (renderThreads > 1) {
+                renderInParallel(tasks, merger, destination, segmentPages);
+            } else {
+                for (int i = 0; i < tasks.size(); i++) {
+                    checkInterrupted();
+                    appendRenderedSegment(merger, destination, callSegmentTask(tasks.get(i)), i, segmentPages);
+                }
             }
             
-            // Save the generated HTML
-            String filename = Paths.get(outputPath).getFileName().toString().replace(".pdf", "_generated.html");
-            Path htmlFile = debugDir.resolve(filename);
+            if (previousOutput != null) {
+                // Every reused page has been copied, and the previous file may be the one about to be replaced
+                previousOutput.close();
+            }
             
-            Files.write(htmlFile, htmlContent.getBytes());
-            logger.info("Debug: Saved generated HTML to: {}", htmlFile.toAbsolutePath());
+            if (!segments.isEmpty() && failedSegments.get() == segments.size()) {
+                throw new IOException("All chapter segments failed to render");
+            }
             
+            if (renderCache != null) {
+                renderCache.evict();
+            }
+            
+            try (ConversionMetrics.Span span = metrics.start(ConversionMetrics.ASSEMBLE)) {
+                ResourceDeduplicator.deduplicateImages(destination);
+                ResourceDeduplicator.deduplicateFonts(destination);
+                applyOutline(destination, segments, segmentPages);
+            }
+            try (ConversionMetrics.Span span = metrics.start(ConversionMetrics.PDF_WRITE)) {
+                writeAtomically(outputPath, destination::save);
+            }
+            if (fontReport) {
+                writeFontReport(destination, outputPath);
+            }
+            if (incremental) {
+                writeSegmentManifest(outputPath, segmentKeys, segmentPages);
+            } else {
+                deleteSegmentManifest(outputPath);
+            }
+            logger.info("PDF created successfully: {} ({} pages, {} failed segments)",
+                outputPath, destination.getNumberOfPages(), failedSegments.get());
+        }
+    }
+    
+    /**
+     * Collects every character the book can render: the text and titles of its chapters and its
+     * metadata in both cases, for text-transform, the strings of the stylesheets' content and
+     * quotes declarations and the digits of the counter styles they use, plus the ASCII range and
+     * the punctuation and list markers that stylesheets and generated content commonly add
+     * @param css the book's compiled stylesheets
+     */
+    private static Set<Integer> collectCodePoints(EpubReader.EpubBook epubBook, String css) {
+        StringBuilder text = new StringBuilder(GENERATED_CHARACTERS);
+        EpubReader.EpubMetadata metadata = epubBook.getMetadata();
+        text.append(nullToEmpty(metadata.getTitle())).append(nullToEmpty(metadata.getAuthor())).append(nullToEmpty(metadata.getPublisher()));
+        for (int c = 0x20; c < 0x7F; c++) {
+            text.append((char) c);
+        }
+        
+        Set<Integer> codePoints = new HashSet<>();
+        addCodePoints(text, codePoints);
+        for (EpubReader.Chapter chapter : epubBook.getChapters()) {
+            addCodePoints(chapter.getCharacters(), codePoints);
+        }
+        addGeneratedCodePoints(css, codePoints);
+        logger.info("Collected {} distinct characters from {} chapters for font subsetting", codePoints.size(), epubBook.getChapters().size());
+        return codePoints;
+    }
+    
+    /**
+     * Adds the characters of the strings in content and quotes declarations, with CSS escapes
+     * resolved, and the digits of the non-Latin counter styles the CSS names
+     */
+    static void addGeneratedCodePoints(String css, Set<Integer> codePoints) {
+        Matcher declaration = GENERATED_TEXT_PATTERN.matcher(css);
+        while (declaration.find()) {
+            Matcher string = CSS_STRING.matcher(declaration.group(1));
+            while (string.find()) {
+                addCodePoints(unescapeCss(string.group(1) != null ? string.group(1) : string.group(2)), codePoints);
+            }
+        }
+        
+        Matcher counterStyle = COUNTER_STYLE_PATTERN.matcher(css);
+        while (counterStyle.find()) {
+            int[] range = COUNTER_STYLE_RANGES.get(counterStyle.group(1).toLowerCase(Locale.ROOT));
+            for (int codePoint = range[0]; codePoint <= range[1]; codePoint++) {
+                codePoints.add(codePoint);
+            }
+        }
+    }
+    
+    private static String unescapeCss(String value) {
+        StringBuilder text = new StringBuilder();
+        Matcher escape = CSS_ESCAPE.matcher(value);
+        int last = 0;
+        while (escape.find()) {
+            text.append(value, last, escape.start());
+            if (escape.group(1) != null) {
+                int codePoint = Integer.parseInt(escape.group(1), 16);
+                if (Character.isValidCodePoint(codePoint)) {
+                    text.appendCodePoint(codePoint);
+                }
+            } else {
+                text.append(escape.group(2));
+            }
+            last = escape.end();
+        }
+        return text.append(value, last, value.length()).toString();
+    }
+    
+    private static void addCodePoints(CharSequence text, Set<Integer> codePoints) {
+        text.codePoints().forEach(codePoint -> {
+            if (codePoints.add(codePoint)) {
+                codePoints.add(Character.toUpperCase(codePoint));
+                codePoints.add(Character.toLowerCase(codePoint));
+            }
+        });
+    }
+    
+    /**
+     * Lists the embedded fonts of the finished document next to the output
+     */
+    private void writeFontReport(PDDocument document, String outputPath) {
+        try {
+            FontReport.write(FontReport.collect(document), FontReport.pathFor(outputPath));
         } catch (IOException e) {
-            logger.error("Error saving debug HTML", e);
+            // The PDF itself is complete, so a missing report does not fail the conversion
+            logger.warn("Could not write font report for {}", outputPath, e);
         }
     }
     
     /**
-     * Builds a complete HTML document from EPUB chapters
+     * Runs the segment tasks on a worker pool and appends their output in task order. Only a
+     * bounded window of segments is in flight, so finished segments waiting for an earlier one
+     * do not accumulate without limit.
      */
-    private String buildHtmlDocument(EpubReader.EpubBook epubBook) {
-        StringBuilder html = new StringBuilder();
+    private void renderInParallel(List<Callable<byte[]>> tasks, PDFMergerUtility merger, PDDocument destination,
+                                  int[] segmentPages) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(renderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "pdf-segment-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
         
-        // Start HTML document with XHTML compliance
-        html.append("<!DOCTYPE html>\n");
-        html.append("<html>\n");
-        html.append("<head>\n");
-        html.append("<meta charset=\"UTF-8\"/>\n");
-        html.append("<title>").append(escapeHtml(epubBook.getMetadata().getTitle())).append("</title>\n");
+        try {
+            int window = renderThreads * 2;
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            int nextTask = 0;
+            for (int i = 0; i < tasks.size(); i++) {
+                while (nextTask < tasks.size() && pending.size() < window) {
+                    pending.add(executor.submit(tasks.get(nextTask++)));
+                }
+                appendRenderedSegment(merger, destination, pending.poll().get(), i, segmentPages);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering segments", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error rendering segment", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * The output of an earlier conversion, whose segment pages can be looked up by render key
+     */
+    private static class PreviousOutput implements Closeable {
+        private final String pdfPath;
+        private final PDDocument document;
+        private final SegmentManifest manifest;
+        private final AtomicInteger reusedSegments = new AtomicInteger();
+        private boolean closed;
         
-        // Add original CSS files from EPUB
-        html.append("<style>\n");
-        html.append(getBaseCSS()); // Base CSS for PDF compatibility
-        html.append("</style>\n");
+        private PreviousOutput(String pdfPath, PDDocument document, SegmentManifest manifest) {
+            this.pdfPath = pdfPath;
+            this.document = document;
+            this.manifest = manifest;
+        }
+        
+        /**
+         * Opens a previous output, or returns null if it or its manifest is missing or they do not match
+         */
+        static PreviousOutput open(String pdfPath) {
+            try {
+                SegmentManifest manifest = SegmentManifest.load(pdfPath);
+                if (manifest == null || !Files.isRegularFile(Paths.get(pdfPath))) {
+                    logger.info("No segment manifest for {}, rendering every segment", pdfPath);
+                    return null;
+                }
+                
+                if (!manifest.describes(pdfPath)) {
+                    logger.warn("{} was replaced since its segment manifest was written, rendering every segment", pdfPath);
+                    return null;
+                }
+                
+                PDDocument document = PDDocument.load(new File(pdfPath), MemoryUsageSetting.setupTempFileOnly());
+                if (document.getNumberOfPages() != manifest.getPageCount()) {
+                    logger.warn("{} has {} pages but its manifest describes {}, rendering every segment",
+                        pdfPath, document.getNumberOfPages(), manifest.getPageCount());
+                    document.close();
+                    return null;
+                }
+                return new PreviousOutput(pdfPath, document, manifest);
+            } catch (IOException e) {
+                logger.warn("Could not open previous output {}, rendering every segment", pdfPath, e);
+                return null;
+            }
+        }
+        
+        /**
+         * Returns the pages recorded under the key as a standalone PDF, or null if the key is unknown
+         */
+        byte[] extractPages(String key) throws IOException {
+            int[] pages = key != null ? manifest.findPages(key) : null;
+            if (pages == null || pages[1] <= 0) {
+                return null;
+            }
+            
+            // PDFBox documents are not thread-safe, and the extracted pages share objects with the source
+            synchronized (document) {
+                try (PDDocument extracted = new PageExtractor(document, pages[0] + 1, pages[0] + pages[1]).extract();
+                     ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+                    extracted.save(os);
+                    reusedSegments.incrementAndGet();
+                    return os.toByteArray();
+                }
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                logger.info("Reused {} unchanged segments from {}", reusedSegments.get(), pdfPath);
+                document.close();
+            }
+        }
+    }
+    
+    /**
+     * Aborts the conversion once its thread has been interrupted, for example by the conversion
+     * service giving up on a job. Layout itself cannot be interrupted, so this is checked
+     * between documents.
+     */
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Conversion interrupted");
+        }
+    }
+    
+    private byte[] callSegmentTask(Callable<byte[]> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Error rendering segment", e);
+        }
+    }
+    
+    private void appendRenderedSegment(PDFMergerUtility merger, PDDocument destination, byte[] segmentPdf, int index,
+                                       int[] segmentPages) throws IOException {
+        int pagesBefore = destination.getNumberOfPages();
+        if (segmentPdf != null) {
+            try (ConversionMetrics.Span span = metrics.start(ConversionMetrics.ASSEMBLE)) {
+                appendSegment(merger, destination, segmentPdf);
+            }
+        }
+        segmentPages[index] = destination.getNumberOfPages() - pagesBefore;
+        logger.debug("Appended segment {} of {} ({} pages so far)", index + 1, segmentPages.length, destination.getNumberOfPages());
+        if (trace.isEnabled()) {
+            trace.event("segment", "index", index, "pages", segmentPages[index], "bytes", segmentPdf != null ? segmentPdf.length : 0);
+        }
+    }
+    
+    /**
+     * Adds one bookmark per chapter, pointing at the first page of the segment it was laid out in.
+     * The outline is rebuilt on every conversion, so it always matches the merged page order.
+     */
+    private void applyOutline(PDDocument destination, List<List<EpubReader.Chapter>> segments, int[] segmentPages) {
+        PDDocumentOutline outline = new PDDocumentOutline();
+        int firstPage = segmentPages[0];
+        for (int i = 0; i < segments.size(); i++) {
+            int pages = segmentPages[i + 1];
+            if (pages > 0) {
+                for (EpubReader.Chapter chapter : segments.get(i)) {
+                    PDPageFitDestination pageDestination = new PDPageFitDestination();
+                    pageDestination.setPage(destination.getPage(firstPage));
+                    
+                    PDOutlineItem bookmark = new PDOutlineItem();
+                    bookmark.setTitle(nullToEmpty(chapter.getTitle()));
+                    bookmark.setDestination(pageDestination);
+                    outline.addLast(bookmark);
+                }
+            }
+            firstPage += pages;
+        }
+        destination.getDocumentCatalog().setDocumentOutline(outline);
+    }
+    
+    /**
+     * Records the render key and page range of every segment next to the output, for the next incremental conversion
+     */
+    private void writeSegmentManifest(String outputPath, String[] segmentKeys, int[] segmentPages) {
+        SegmentManifest manifest = new SegmentManifest();
+        int firstPage = 0;
+        for (int i = 0; i < segmentKeys.length; i++) {
+            manifest.addSegment(segmentKeys[i], firstPage, segmentPages[i]);
+            firstPage += segmentPages[i];
+        }
         
-        // Add original EPUB CSS files
-        Map<String, String> cssFiles = epubBook.getCssFiles();
-        logger.info("Adding {} CSS files to HTML", cssFiles.size());
-        for (Map.Entry<String, String> cssEntry : cssFiles.entrySet()) {
-            html.append("<style>\n");
-            html.append("/* CSS from: ").append(cssEntry.getKey()).append(" */\n");
-            html.append(cssEntry.getValue()).append("\n");
-            html.append("</style>\n");
-            logger.info("Added CSS file: {} (size: {} chars)", cssEntry.getKey(), cssEntry.getValue().length());
+        try {
+            manifest.store(outputPath);
+        } catch (IOException e) {
+            logger.warn("Could not write segment manifest for {}, the next conversion will render every segment", outputPath, e);
+        }
+    }
+    
+    /**
+     * Deletes the segment manifest of an earlier incremental conversion to the same output, which
+     * no longer describes its pages
+     */
+    private void deleteSegmentManifest(String outputPath) {
+        try {
+            SegmentManifest.delete(outputPath);
+        } catch (IOException e) {
+            logger.warn("Could not delete the stale segment manifest of {}", outputPath, e);
+        }
+    }
+    
+    /**
+     * Groups the spine chapters into consecutive segments of at most chaptersPerSegment chapters
+     */
+    private List<List<EpubReader.Chapter>> splitIntoSegments(List<EpubReader.Chapter> chapters) {
+        List<List<EpubReader.Chapter>> segments = new ArrayList<>();
+        for (int start = 0; start < chapters.size(); start += chaptersPerSegment) {
+            segments.add(chapters.subList(start, Math.min(start + chaptersPerSegment, chapters.size())));
         }
+        return segments;
+    }
+    
+    /**
+     * Renders the plain text of the chapters when their markup cannot be laid out
+     */
+    private byte[] renderFallbackSegment(EpubReader.EpubBook epubBook, EpubStreamFactory streamFactory, FontRegistry.BookFonts fonts,
+                                         StylesheetCompiler stylesheets, List<EpubReader.Chapter> segment) {
+        try {
+            org.jsoup.nodes.Document document = createHtmlDocument(epubBook, stylesheets, linkedStylesheets(epubBook, segment));
+            for (EpubReader.Chapter chapter : segment) {
+                org.jsoup.nodes.Element chapterDiv = appendChapterHeading(document.body(), chapter);
+                chapterDiv.appendElement("p").text(chapter.getContent());
+            }
+            return renderSegment(streamFactory, fonts, document, null);
+        } catch (Exception e) {
+            logger.error("Error rendering plain text fallback, skipping segment", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the pages of a segment, copied from the previous conversion when its inputs are
+     * unchanged and rendered otherwise. The segment's key is recorded for the manifest.
+     */
+    private byte[] renderOrReuse(EpubStreamFactory streamFactory, FontRegistry.BookFonts fonts, org.jsoup.nodes.Document document,
+                                 PreviousOutput previous, String[] segmentKeys, int index) throws IOException {
+        String key = renderCache != null || incremental ? segmentCacheKey(streamFactory, fonts, document) : null;
+        segmentKeys[index] = key;
         
-        html.append("</head>\n");
-        html.append("<body>\n");
+        byte[] reused = previous != null ? previous.extractPages(key) : null;
+        return reused != null ? reused : renderSegment(streamFactory, fonts, document, key);
+    }
+    
+    /**
+     * Lays out a single HTML document and returns it as a complete PDF
+     * @param cacheKey key of the document in the render cache, or null to bypass the cache
+     */
+    private byte[] renderSegment(EpubStreamFactory streamFactory, FontRegistry.BookFonts fonts, org.jsoup.nodes.Document document,
+                                 String cacheKey) throws IOException {
+        if (renderCache != null && cacheKey != null) {
+            byte[] cached = renderCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
         
-        // Add title page
-        html.append(buildTitlePage(epubBook));
+        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+            PdfRendererBuilder builder = createRendererBuilder(streamFactory, fonts, document);
+            builder.toStream(os);
+            render(builder);
+            
+            byte[] segmentPdf = os.toByteArray();
+            if (renderCache != null && cacheKey != null) {
+                renderCache.put(cacheKey, segmentPdf);
+            }
+            return segmentPdf;
+        }
+    }
+    
+    /**
+     * Lays out the builder's document and draws it into its output stream, measuring the two
+     * separately; the same steps as {@link PdfRendererBuilder#run()}
+     */
+    private void render(PdfRendererBuilder builder) throws IOException {
+        try (PdfBoxRenderer renderer = builder.buildPdfRenderer()) {
+            try (ConversionMetrics.Span span = metrics.start(ConversionMetrics.LAYOUT)) {
+                renderer.layout();
+            }
+            try (ConversionMetrics.Span span = metrics.start(ConversionMetrics.PDF_WRITE)) {
+                renderer.createPDF();
+            }
+        }
+    }
+    
+    /**
+     * Hashes everything a segment render depends on: the document as handed to the renderer
+     * (chapter markup, compiled CSS and titles), the bytes of every image it references, the
+     * fonts and the settings that shape the output
+     */
+    private String segmentCacheKey(EpubStreamFactory streamFactory, FontRegistry.BookFonts fonts, org.jsoup.nodes.Document document) {
+        RenderCache.KeyBuilder key = RenderCache.newKey()
+            .add("dpi=" + imageDpi + ";jpeg=" + jpegQuality)
+            .add(fonts.getSourceKey())
+            .add(document.outerHtml());
         
-        // Add chapters
-        html.append(buildChapters(epubBook));
+        for (org.jsoup.nodes.Element img : document.select("img[src]")) {
+            String href = EpubStreamFactory.toHref(img.attr("src"));
+            byte[] image = href != null ? streamFactory.getResource(href) : null;
+            if (image != null) {
+                key.add(href).add(image);
+            }
+        }
+        return key.build();
+    }
+    
+    /**
+     * Appends the pages of a rendered segment to the destination document. The pages are
+     * cloned into the destination, so the segment can be released straight away.
+     */
+    private void appendSegment(PDFMergerUtility merger, PDDocument destination, byte[] segmentPdf) throws IOException {
+        try (PDDocument source = PDDocument.load(segmentPdf, "", null, null, createMemoryUsageSetting())) {
+            merger.appendDocument(destination, source);
+        }
+    }
+    
+    /**
+     * Writes a PDF through a buffered stream into a temporary file next to the output and moves
+     * it into place once complete, so a failed conversion never leaves a truncated PDF behind.
+     */
+    private void writeAtomically(String outputPath, PdfWriter writer) throws IOException {
+        Path outputFile = Paths.get(outputPath).toAbsolutePath();
+        // Not Files.createTempFile, which would leave the output readable by its owner only
+        Path tempFile = Files.createFile(outputFile.resolveSibling(outputFile.getFileName() + "." + UUID.randomUUID() + ".tmp"));
         
-        html.append("</body>\n");
-        html.append("</html>\n");
+        try {
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tempFile), OUTPUT_BUFFER_SIZE)) {
+                writer.writeTo(os);
+            }
+            
+            try {
+                Files.move(tempFile, outputFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, outputFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+    
+    /**
+     * Returns the PDFBox memory settings for a new document. Without a main memory limit or
+     * scratch directory everything stays on-heap, as before.
+     */
+    private MemoryUsageSetting createMemoryUsageSetting() {
+        MemoryUsageSetting setting;
+        if (maxMainMemoryBytes >= 0) {
+            setting = MemoryUsageSetting.setupMixed(maxMainMemoryBytes);
+        } else if (scratchDirectory != null) {
+            setting = MemoryUsageSetting.setupTempFileOnly();
+        } else {
+            return MemoryUsageSetting.setupMainMemoryOnly();
+        }
         
-        return html.toString();
+        if (scratchDirectory != null) {
+            setting.setTempDir(scratchDirectory);
+        }
+        return setting;
     }
     
     /**
-     * Builds the title page HTML
+     * Creates the stream factory serving the book's images, downsampled and recompressed first
+     * when a target DPI is configured
      */
-    private String buildTitlePage(EpubReader.EpubBook epubBook) {
-        StringBuilder titlePage = new StringBuilder();
+    private EpubStreamFactory createStreamFactory(EpubReader.EpubBook epubBook, Map<String, String> canonicalImages,
+                                                  StylesheetCompiler stylesheets) throws IOException {
+        if (imageDpi <= 0) {
+            return new EpubStreamFactory(epubBook.getImages());
+        }
         
-        titlePage.append("<div class=\"title-page\">\n");
-        titlePage.append("<h1 class=\"book-title\">").append(escapeHtml(epubBook.getMetadata().getTitle())).append("</h1>\n");
-        titlePage.append("<h2 class=\"book-author\">").append(escapeHtml(epubBook.getMetadata().getAuthor())).append("</h2>\n");
+        int contentWidth = pageContentWidth(getBaseCSS() + stylesheets.compile(linkedStylesheets(epubBook, epubBook.getChapters())));
+        logger.debug("Page content width for image downsampling: {}px", contentWidth);
+        Map<String, Integer> renderedWidths = collectRenderedWidths(epubBook, canonicalImages, contentWidth);
+        ImageOptimizer optimizer = new ImageOptimizer(imageDpi, jpegQuality, Runtime.getRuntime().availableProcessors());
+        Map<String, byte[]> optimized = optimizer.optimize(epubBook.getImages(), new LinkedHashSet<>(canonicalImages.values()),
+            renderedWidths, contentWidth);
+        return new EpubStreamFactory(epubBook.getImages(), optimized);
+    }
+    
+    /**
+     * Returns the width of the page content box in CSS pixels, from the page size and left and
+     * right margins of the given CSS's @page rules, later rules overriding earlier ones. Rules for
+     * page selectors such as :first or named pages, and lengths in relative units, are ignored.
+     */
+    static int pageContentWidth(String css) {
+        double pageWidth = PAGE_SIZES_MM.get("a4")[0] * CSS_PIXELS_PER_MM;
+        double marginLeft = 0;
+        double marginRight = 0;
         
-        // Add other metadata if available
-        if (epubBook.getMetadata().getPublisher() != null && !epubBook.getMetadata().getPublisher().trim().isEmpty()) {
-            titlePage.append("<p class=\"book-publisher\">").append(escapeHtml(epubBook.getMetadata().getPublisher())).append("</p>\n");
+        for (String statement : StylesheetCompiler.splitStatements(css)) {
+            int open = statement.indexOf('{');
+            int close = statement.lastIndexOf('}');
+            if (!statement.regionMatches(true, 0, "@page", 0, 5) || open < 0 || close < open
+                    || !statement.substring(5, open).trim().isEmpty()) {
+                continue;
+            }
+            
+            for (String declaration : statement.substring(open + 1, close).split(";")) {
+                int colon = declaration.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String property = declaration.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String[] values = declaration.substring(colon + 1).replace("!important", "").trim()
+                    .toLowerCase(Locale.ROOT).split("\\s+");
+                switch (property) {
+                    case "size":
+                        pageWidth = pageWidthOf(values, pageWidth);
+                        break;
+                    case "margin":
+                        // One or two values give both sides the same margin; four list them clockwise
+                        int right = values.length > 1 ? 1 : 0;
+                        int left = values.length > 3 ? 3 : right;
+                        marginRight = lengthOf(values[right], marginRight);
+                        marginLeft = lengthOf(values[left], marginLeft);
+                        break;
+                    case "margin-left":
+                        marginLeft = lengthOf(values[0], marginLeft);
+                        break;
+                    case "margin-right":
+                        marginRight = lengthOf(values[0], marginRight);
+                        break;
+                    default:
+                        break;
+                }
+            }
         }
         
-        titlePage.append("</div>\n");
-        titlePage.append("<div class=\"page-break\"></div>\n"); // Force page break after title
+        return Math.max(1, (int) Math.round(pageWidth - marginLeft - marginRight));
+    }
+    
+    /**
+     * Returns the page width in CSS pixels given by the values of a size descriptor
+     */
+    private static double pageWidthOf(String[] values, double current) {
+        if (values.length == 0 || values[0].equals("auto")) {
+            return PAGE_SIZES_MM.get("a4")[0] * CSS_PIXELS_PER_MM;
+        }
         
-        return titlePage.toString();
+        double[] size = null;
+        boolean landscape = false;
+        for (String value : values) {
+            if (PAGE_SIZES_MM.containsKey(value)) {
+                size = PAGE_SIZES_MM.get(value);
+            } else if (value.equals("landscape")) {
+                landscape = true;
+            }
+        }
+        if (size != null || landscape) {
+            double[] mm = size != null ? size : PAGE_SIZES_MM.get("a4");
+            return (landscape ? mm[1] : mm[0]) * CSS_PIXELS_PER_MM;
+        }
+        // Explicit lengths give the width first
+        return lengthOf(values[0], current);
+    }
+    
+    /**
+     * Converts an absolute CSS length to CSS pixels, or returns the given default if it is not one
+     */
+    private static double lengthOf(String value, double defaultValue) {
+        Matcher matcher = CSS_LENGTH.matcher(value);
+        if (!matcher.matches()) {
+            return defaultValue;
+        }
+        double number = Double.parseDouble(matcher.group(1));
+        String unit = matcher.group(2);
+        if (unit == null) {
+            return number == 0 ? 0 : defaultValue;
+        }
+        switch (unit) {
+            case "pt":
+                return number * 96 / 72;
+            case "pc":
+                return number * 16;
+            case "in":
+                return number * 96;
+            case "cm":
+                return number * 10 * CSS_PIXELS_PER_MM;
+            case "mm":
+                return number * CSS_PIXELS_PER_MM;
+            case "q":
+                return number / 4 * CSS_PIXELS_PER_MM;
+            default:
+                return number;
+        }
     }
     
     /**
-     * Builds the chapters HTML
+     * Scans the chapters for the largest width, in CSS pixels, each canonical image is rendered at.
+     * Icon images are capped by their size constraint and explicit widths are honoured; anything
+     * else is assumed to fill the page content width.
      */
-    private String buildChapters(EpubReader.EpubBook epubBook) {
-        StringBuilder chapters = new StringBuilder();
+    private Map<String, Integer> collectRenderedWidths(EpubReader.EpubBook epubBook, Map<String, String> canonicalImages,
+                                                       int contentWidth) {
+        Map<String, Integer> renderedWidths = new HashMap<>();
         
         for (EpubReader.Chapter chapter : epubBook.getChapters()) {
-            chapters.append("<div class=\"chapter\">\n");
-            
-            // Add chapter title
-            chapters.append("<h2 class=\"chapter-title\">").append(escapeHtml(chapter.getTitle())).append("</h2>\n");
-            
-            // Add chapter content - use HTML content instead of raw text
             String chapterHtml = chapter.getHtmlContent();
-            if (chapterHtml != null && !chapterHtml.trim().isEmpty()) {
-                // Extract body content and embed images
-                String bodyContent = extractBodyContent(chapterHtml, epubBook.getImages());
-                chapters.append(bodyContent);
-            } else {
-                // Fallback to text content if HTML is not available
-                chapters.append("<p>").append(escapeHtml(chapter.getContent())).append("</p>\n");
+            if (chapterHtml == null) {
+                continue;
             }
             
-            chapters.append("</div>\n");
+            for (org.jsoup.nodes.Element img : org.jsoup.Jsoup.parse(chapterHtml).select("img[src]")) {
+                String imagePath = resolveImagePath(img.attr("src"), chapter.getHref());
+                String canonicalPath = imagePath != null ? canonicalImages.get(imagePath) : null;
+                if (canonicalPath != null) {
+                    renderedWidths.merge(canonicalPath, renderedWidthOf(img, contentWidth), Math::max);
+                }
+            }
         }
         
-        return chapters.toString();
+        return renderedWidths;
     }
     
     /**
-     * Extracts content from HTML body, handling various EPUB HTML structures and embedding images
+     * Estimates the width an image is rendered at from its constraints, width attribute or inline style
      */
-    private String extractBodyContent(String htmlContent, Map<String, byte[]> images) {
-        if (htmlContent == null || htmlContent.trim().isEmpty()) {
-            return "";
+    private int renderedWidthOf(org.jsoup.nodes.Element img, int contentWidth) {
+        if (hasIconSizeConstraint(img)) {
+            return ICON_MAX_WIDTH_PX;
         }
         
-        // Use JSoup to parse and extract body content
+        Matcher styleWidth = STYLE_WIDTH_PX.matcher(img.attr("style"));
+        String width = styleWidth.find() ? styleWidth.group(1) : img.attr("width").trim();
         try {
-            org.jsoup.nodes.Document doc = org.jsoup.Jsoup.parse(htmlContent);
-            doc.outputSettings().syntax(org.jsoup.nodes.Document.OutputSettings.Syntax.xml);
-            doc.outputSettings().escapeMode(org.jsoup.nodes.Entities.EscapeMode.xhtml);
-            org.jsoup.nodes.Element body = doc.body();
+            return Math.min(contentWidth, (int) Math.ceil(Double.parseDouble(width)));
+        } catch (NumberFormatException e) {
+            return contentWidth;
+        }
+    }
+    
+    /**
+     * Returns true if the image is capped at the icon size by {@link #applyImageSizeConstraints}
+     */
+    private boolean hasIconSizeConstraint(org.jsoup.nodes.Element img) {
+        if (img.attr("class").contains(ICON_IMAGE_CLASS)) {
+            return true;
+        }
+        
+        org.jsoup.nodes.Element parent = img.parent();
+        if (parent == null) {
+            return false;
+        }
+        if (parent.hasClass(ICON_IMAGE_CLASS)) {
+            return true;
+        }
+        for (org.jsoup.nodes.Element sibling : parent.siblingElements()) {
+            if (sibling.hasClass(ICON_IMAGE_CLASS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Creates a renderer builder for the given HTML with the settings shared by all render modes
+     */
+    private PdfRendererBuilder createRendererBuilder(EpubStreamFactory streamFactory, FontRegistry.BookFonts fonts,
+                                                     org.jsoup.nodes.Document document) {
+        PdfRendererBuilder builder = new PdfRendererBuilder();
+        builder.useFastMode();
+        // Hand over the parsed tree so the renderer does not parse the markup a second time
+        builder.withW3cDocument(new W3CDom().fromJsoup(document), null);
+        builder.useProtocolsStreamImplementation(streamFactory, EpubStreamFactory.SCHEME);
+        builder.usePDDocument(new PDDocument(createMemoryUsageSetting()));
+        fonts.applyTo(builder);
+        return builder;
+    }
+    
+    /**
+     * Queues the HTML handed to the renderer as a diagnostics artifact. The renderer is handed
+     * the DOM, so the HTML is only serialized when diagnostics are on.
+     */
+    private void saveDiagnosticHtml(org.jsoup.nodes.Document document, String name) {
+        if (diagnostics.isEnabled()) {
+            diagnostics.write(name, document.outerHtml());
+        }
+    }
+    
+    /**
+     * Builds a complete HTML document from EPUB chapters
+     */
+    private org.jsoup.nodes.Document buildHtmlDocument(EpubReader.EpubBook epubBook, StylesheetCompiler stylesheets, XhtmlNormalizer normalizer) {
+        org.jsoup.nodes.Document document = createHtmlDocument(epubBook, stylesheets, linkedStylesheets(epubBook, epubBook.getChapters()));
+        appendTitlePage(document.body(), epubBook);
+        document.body().appendElement("div").addClass("page-break"); // Force page break after title
+        appendChapters(document.body(), epubBook.getChapters(), normalizer);
+        return document;
+    }
+    
+    /**
+     * Returns the stylesheets linked from the given chapters, in order of first use. A book whose
+     * chapters link no stylesheets at all gets every stylesheet in the manifest.
+     */
+    private Collection<String> linkedStylesheets(EpubReader.EpubBook epubBook, List<EpubReader.Chapter> chapters) {
+        Set<String> hrefs = new LinkedHashSet<>();
+        for (EpubReader.Chapter chapter : chapters) {
+            hrefs.addAll(chapter.getStylesheets());
+        }
+        
+        if (hrefs.isEmpty() && epubBook.getChapters().stream().allMatch(chapter -> chapter.getStylesheets().isEmpty())) {
+            return epubBook.getCssFiles().keySet();
+        }
+        return hrefs;
+    }
+    
+    /**
+     * Creates an empty HTML document whose head carries the base CSS and the given EPUB stylesheets compiled
+     */
+    private org.jsoup.nodes.Document createHtmlDocument(EpubReader.EpubBook epubBook, StylesheetCompiler stylesheets,
+                                                        Collection<String> stylesheetHrefs) {
+        org.jsoup.nodes.Document document = org.jsoup.nodes.Document.createShell("");
+        document.outputSettings()
+            .syntax(org.jsoup.nodes.Document.OutputSettings.Syntax.xml)
+            .escapeMode(org.jsoup.nodes.Entities.EscapeMode.xhtml);
+        
+        org.jsoup.nodes.Element head = document.head();
+        head.appendElement("meta").attr("charset", "UTF-8");
+        head.appendElement("title").text(nullToEmpty(epubBook.getMetadata().getTitle()));
+        
+        // Base CSS for PDF compatibility, followed by the EPUB CSS compiled into a single sheet
+        head.appendElement("style").appendChild(new org.jsoup.nodes.DataNode(
+            getBaseCSS() + stylesheets.compile(stylesheetHrefs) + "\n"));
+        
+        return document;
+    }
+    
+    /**
+     * Appends the title page
+     */
+    private void appendTitlePage(org.jsoup.nodes.Element body, EpubReader.EpubBook epubBook) {
+        org.jsoup.nodes.Element titlePage = body.appendElement("div").addClass("title-page");
+        titlePage.appendElement("h1").addClass("book-title").text(nullToEmpty(epubBook.getMetadata().getTitle()));
+        titlePage.appendElement("h2").addClass("book-author").text(nullToEmpty(epubBook.getMetadata().getAuthor()));
+        
+        // Add other metadata if available
+        if (epubBook.getMetadata().getPublisher() != null && !epubBook.getMetadata().getPublisher().trim().isEmpty()) {
+            titlePage.appendElement("p").addClass("book-publisher").text(epubBook.getMetadata().getPublisher());
+        }
+    }
+    
+    /**
+     * Appends the given chapters, moving each chapter's normalized body content into the document
+     */
+    private void appendChapters(org.jsoup.nodes.Element body, List<EpubReader.Chapter> chapterList, XhtmlNormalizer normalizer) {
+        for (EpubReader.Chapter chapter : chapterList) {
+            org.jsoup.nodes.Element chapterDiv = appendChapterHeading(body, chapter);
             
-            String result;
-            if (body != null) {
-                // Process images and convert to data URIs
-                embedImages(body, images);
-                result = body.html();
+            // Add chapter content - use HTML content instead of raw text
+            String chapterHtml = chapter.getHtmlContent();
+            org.jsoup.nodes.Element chapterBody = chapterHtml != null && !chapterHtml.trim().isEmpty()
+                ? extractBodyContent(chapterHtml, chapter.getHref(), normalizer)
+                : null;
+            if (chapterBody != null) {
+                chapterDiv.insertChildren(-1, new ArrayList<>(chapterBody.childNodes()));
             } else {
-                // If no body tag, parse the entire content and process images
-                embedImages(doc, images);
-                result = doc.html();
+                // Fallback to text content if HTML is not available
+                chapterDiv.appendElement("p").text(nullToEmpty(chapter.getContent()));
             }
-            
-            // Ensure XHTML compliance
-            return ensureXhtmlCompliance(result);
-        } catch (Exception e) {
-            logger.warn("Error parsing HTML content, using raw content", e);
-            return ensureXhtmlCompliance(htmlContent);
-        }
-    }
-    
-    /**
-     * Ensures XHTML compliance by fixing self-closing tags and other issues
-     */
-    private String ensureXhtmlCompliance(String htmlContent) {
-        if (htmlContent == null || htmlContent.trim().isEmpty()) {
-            return htmlContent;
-        }
-        
-        // Fix self-closing tags to be XHTML compliant
-        String result = htmlContent;
-        
-        // Fix common self-closing tags - handle both empty tags and tags with attributes
-        // Use simpler approach: just add / before > if it's not already there
-        result = result.replaceAll("<(meta[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(img[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(br[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(hr[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(input[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(area[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(base[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(col[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(embed[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(link[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(param[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(source[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(track[^>]*[^/])>", "<$1/>");
-        result = result.replaceAll("<(wbr[^>]*[^/])>", "<$1/>");
-        
-        // Handle special case of tags with no attributes
-        result = result.replaceAll("<(meta|img|br|hr|input|area|base|col|embed|link|param|source|track|wbr)>", "<$1/>");
-        
-        // Fix any malformed table structures by ensuring proper closing
-        result = fixMalformedTables(result);
-        
-        // Remove any standalone closing tags that shouldn't exist
-        result = result.replaceAll("</meta>", "");
-        result = result.replaceAll("</img>", "");
-        result = result.replaceAll("</br>", "");
-        result = result.replaceAll("</hr>", "");
-        result = result.replaceAll("</input>", "");
-        result = result.replaceAll("</area>", "");
-        result = result.replaceAll("</base>", "");
-        result = result.replaceAll("</col>", "");
-        result = result.replaceAll("</embed>", "");
-        result = result.replaceAll("</link>", "");
-        result = result.replaceAll("</param>", "");
-        result = result.replaceAll("</source>", "");
-        result = result.replaceAll("</track>", "");
-        result = result.replaceAll("</wbr>", "");
-        
-        // Fix HTML entities to be XHTML compliant (convert to numeric entities)
-        result = result.replaceAll("&nbsp;", "&#160;");
-        result = result.replaceAll("&amp;", "&#38;");
-        result = result.replaceAll("&lt;", "&#60;");
-        result = result.replaceAll("&gt;", "&#62;");
-        result = result.replaceAll("&quot;", "&#34;");
-        result = result.replaceAll("&apos;", "&#39;");
-        result = result.replaceAll("&copy;", "&#169;");
-        result = result.replaceAll("&reg;", "&#174;");
-        result = result.replaceAll("&trade;", "&#8482;");
-        result = result.replaceAll("&mdash;", "&#8212;");
-        result = result.replaceAll("&ndash;", "&#8211;");
-        result = result.replaceAll("&ldquo;", "&#8220;");
-        result = result.replaceAll("&rdquo;", "&#8221;");
-        result = result.replaceAll("&lsquo;", "&#8216;");
-        result = result.replaceAll("&rsquo;", "&#8217;");
-        result = result.replaceAll("&hellip;", "&#8230;");
-        
-        return result;
-    }
-    
-    /**
-     * Fixes malformed table structures that might cause XHTML parsing issues
-     */
-    private String fixMalformedTables(String htmlContent) {
-        if (htmlContent == null || htmlContent.trim().isEmpty()) {
-            return htmlContent;
-        }
-        
-        // Use JSoup to parse and fix table structure
+        }
+    }
+    
+    /**
+     * Appends a chapter container holding the chapter title and returns it
+     */
+    private org.jsoup.nodes.Element appendChapterHeading(org.jsoup.nodes.Element body, EpubReader.Chapter chapter) {
+        org.jsoup.nodes.Element chapterDiv = body.appendElement("div").addClass("chapter");
+        chapterDiv.appendElement("h2").addClass("chapter-title").text(nullToEmpty(chapter.getTitle()));
+        return chapterDiv;
+    }
+    
+    /**
+     * Normalizes a chapter's markup and returns its body element, or null if the markup cannot be processed
+     */
+    private org.jsoup.nodes.Element extractBodyContent(String htmlContent, String chapterHref, XhtmlNormalizer normalizer) {
         try {
-            org.jsoup.nodes.Document tempDoc = org.jsoup.Jsoup.parse(htmlContent);
-            tempDoc.outputSettings().syntax(org.jsoup.nodes.Document.OutputSettings.Syntax.xml);
-            tempDoc.outputSettings().escapeMode(org.jsoup.nodes.Entities.EscapeMode.xhtml);
-            
-            // JSoup will automatically fix malformed HTML structure
-            return tempDoc.html();
+            return normalizer.normalizeBody(htmlContent, chapterHref);
         } catch (Exception e) {
-            logger.warn("Failed to fix malformed tables, using original content", e);
-            return htmlContent;
+            logger.warn("Error normalizing HTML content of {}, using its text", chapterHref, e);
+            return null;
         }
     }
     
     /**
-     * Embeds images as data URIs in the HTML content and applies size constraints
+     * Creates the normalizer that turns chapter markup into XHTML body content, pointing images
+     * at the EPUB resource stream on the way
      */
-    private void embedImages(org.jsoup.nodes.Element element, Map<String, byte[]> images) {
-        org.jsoup.select.Elements imgElements = element.select("img");
-        
-        for (org.jsoup.nodes.Element img : imgElements) {
-            String src = img.attr("src");
-            if (src != null && !src.isEmpty()) {
-                // Handle relative paths
-                String imagePath = src;
-                if (imagePath.startsWith("../")) {
-                    imagePath = imagePath.substring(3); // Remove ../
-                }
-                
-                // Look for the image in our extracted images
-                byte[] imageData = images.get(imagePath);
-                if (imageData != null) {
-                    // Convert to data URI
-                    String mimeType = getMimeType(imagePath);
-                    String base64Data = Base64.getEncoder().encodeToString(imageData);
-                    String dataUri = "data:" + mimeType + ";base64," + base64Data;
-                    
-                    img.attr("src", dataUri);
-                    logger.info("Embedded image: {}", imagePath);
-                } else {
-                    logger.warn("Image not found in extracted images: {}", imagePath);
+    private XhtmlNormalizer createNormalizer(Map<String, String> canonicalImages) {
+        return new XhtmlNormalizer()
+            .addRule("img", (img, chapterHref) -> linkImage(img, chapterHref, canonicalImages));
+    }
+    
+    /**
+     * Rewrites an image source to an epub: URI served by {@link EpubStreamFactory} and applies size constraints.
+     * Images with identical content share the URI of their canonical copy, so they are decoded once.
+     */
+    private void linkImage(org.jsoup.nodes.Element img, String chapterHref, Map<String, String> canonicalImages) {
+        String src = img.attr("src");
+        if (!src.isEmpty()) {
+            String imagePath = resolveImagePath(src, chapterHref);
+            
+            // Look the image up in the manifest; its bytes are only read when the renderer asks for them
+            String canonicalPath = imagePath != null ? canonicalImages.get(imagePath) : null;
+            if (canonicalPath != null) {
+                img.attr("src", EpubStreamFactory.toUri(canonicalPath));
+                logger.debug("Linked image: {}", imagePath);
+                if (trace.isEnabled()) {
+                    trace.event("image_link", "chapter", chapterHref, "href", imagePath, "canonical", canonicalPath);
                 }
+            } else {
+                logger.warn("Image not found in extracted images: {}", src);
             }
-            
-            // Apply size constraints based on CSS classes to fix PDF rendering issues
-            applyImageSizeConstraints(img);
         }
+        
+        // Apply size constraints based on CSS classes to fix PDF rendering issues
+        applyImageSizeConstraints(img);
+    }
+    
+    /**
+     * Resolves an image source to its manifest href, relative to the chapter when it is known
+     */
+    private String resolveImagePath(String src, String chapterHref) {
+        if (chapterHref != null) {
+            return EpubArchive.resolveHref(chapterHref, src);
+        }
+        
+        // Handle relative paths
+        return src.startsWith("../") ? src.substring(3) : src;
     }
     
     /**
@@ -346,27 +1123,27 @@ public class PdfCreator {
         String existingStyle = img.attr("style");
         
         // Check if the image itself has the twoheader-icon-para-img class
-        if (cssClass != null && cssClass.contains("twoheader-icon-para-img")) {
+        if (cssClass != null && cssClass.contains(ICON_IMAGE_CLASS)) {
             // Apply max-width constraint for advisor images
             String newStyle = "max-width: 100px; height: auto;";
             if (existingStyle != null && !existingStyle.trim().isEmpty()) {
                 newStyle = existingStyle + "; " + newStyle;
             }
             img.attr("style", newStyle);
-            logger.info("Applied size constraint to image with class: {}", cssClass);
+            logger.debug("Applied size constraint to image with class: {}", cssClass);
         }
         
         // Check if the image is near a twoheader-icon-para-img element (sibling or child context)
         org.jsoup.nodes.Element parent = img.parent();
         if (parent != null) {
             // Check if parent has the class
-            if (parent.hasClass("twoheader-icon-para-img")) {
+            if (parent.hasClass(ICON_IMAGE_CLASS)) {
                 applyImageSizeConstraint(img, existingStyle, "parent element");
             } else {
                 // Check if there's a sibling with the class
                 org.jsoup.select.Elements siblings = parent.siblingElements();
                 for (org.jsoup.nodes.Element sibling : siblings) {
-                    if (sibling.hasClass("twoheader-icon-para-img")) {
+                    if (sibling.hasClass(ICON_IMAGE_CLASS)) {
                         applyImageSizeConstraint(img, existingStyle, "sibling element");
                         break;
                     }
@@ -389,48 +1166,20 @@ public class PdfCreator {
             newStyle = existingStyle + "; " + newStyle;
         }
         img.attr("style", newStyle);
-        logger.info("Applied size constraint to image based on {}: max-width: 100px", context);
-    }
-    
-    /**
-     * Determines MIME type based on file extension
-     */
-    private String getMimeType(String filename) {
-        String extension = filename.toLowerCase();
-        if (extension.endsWith(".jpg") || extension.endsWith(".jpeg")) {
-            return "image/jpeg";
-        } else if (extension.endsWith(".png")) {
-            return "image/png";
-        } else if (extension.endsWith(".gif")) {
-            return "image/gif";
-        } else if (extension.endsWith(".svg")) {
-            return "image/svg+xml";
-        } else if (extension.endsWith(".bmp")) {
-            return "image/bmp";
-        } else {
-            return "image/jpeg"; // Default fallback
-        }
+        logger.debug("Applied size constraint to image based on {}: max-width: 100px", context);
     }
     
     /**
-     * Escapes HTML special characters
+     * Returns the text, or an empty string for missing metadata
      */
-    private String escapeHtml(String text) {
-        if (text == null) {
-            return "";
-        }
-        
-        return text.replace("&", "&amp;")
-                  .replace("<", "&lt;")
-                  .replace(">", "&gt;")
-                  .replace("\"", "&quot;")
-                  .replace("'", "&#39;");
+    private static String nullToEmpty(String text) {
+        return text != null ? text : "";
     }
     
     /**
      * Returns minimal base CSS for PDF compatibility
      */
-    private String getBaseCSS() {
+    static String getBaseCSS() {
         return "@page {\n" +
             "    size: A4;\n" +
             "    margin: 2cm;\n" +
@@ -0,0 +1,179 @@
+package com.epubtopdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of rendered segment PDFs, addressed by a hash of everything that goes into the
+ * render. Reconverting a book after one lesson changed only lays out the changed segments.
+ * The cache is bounded in size; the least recently used entries are evicted first.
+ */
+public class RenderCache {
+    private static final Logger logger = LoggerFactory.getLogger(RenderCache.class);
+    
+    /** Bump when the rendering pipeline changes in a way the key does not capture */
+    private static final String FORMAT_VERSION = "1";
+    private static final String ENTRY_SUFFIX = ".pdf";
+    
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    
+    /**
+     * @param directory directory holding the cache entries; created on first use
+     * @param maxBytes total size the entries are evicted down to
+     */
+    public RenderCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * Accumulates the inputs of a render into a cache key
+     */
+    public static class KeyBuilder {
+        private final MessageDigest digest = ResourceDeduplicator.newDigest();
+        
+        private KeyBuilder() {
+            add(FORMAT_VERSION);
+        }
+        
+        public KeyBuilder add(String part) {
+            return add(part.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        public KeyBuilder add(byte[] part) {
+            // Length-prefixed, so different splits of the same bytes give different keys
+            digest.update(BigInteger.valueOf(part.length).toByteArray());
+            digest.update(part);
+            return this;
+        }
+        
+        public String build() {
+            return new BigInteger(1, digest.digest()).toString(16);
+        }
+    }
+    
+    public static KeyBuilder newKey() {
+        return new KeyBuilder();
+    }
+    
+    /**
+     * Returns the cached PDF for the key, or null on a miss. A hit marks the entry as recently used.
+     */
+    public byte[] get(String key) {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        try {
+            if (Files.isRegularFile(entry)) {
+                byte[] pdf = Files.readAllBytes(entry);
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                hits.incrementAndGet();
+                return pdf;
+            }
+        } catch (IOException e) {
+            logger.warn("Could not read render cache entry {}: {}", entry, e.getMessage());
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+    
+    /**
+     * Stores a rendered PDF. Failures are logged and otherwise ignored, since the cache is only an optimization.
+     */
+    public void put(String key, byte[] pdf) {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        Path tempFile = null;
+        try {
+            Files.createDirectories(directory);
+            tempFile = Files.createFile(directory.resolve(key + "." + UUID.randomUUID() + ".tmp"));
+            Files.write(tempFile, pdf);
+            try {
+                Files.move(tempFile, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write render cache entry {}: {}", entry, e.getMessage());
+        } finally {
+            deleteQuietly(tempFile);
+        }
+    }
+    
+    /**
+     * Deletes the least recently used entries until the cache fits its size limit, and logs the hit rate
+     */
+    public void evict() {
+        logger.info("Render cache: {} hits, {} misses", hits.get(), misses.get());
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        
+        List<Path> entries = new ArrayList<>();
+        long totalBytes = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+                totalBytes += Files.size(entry);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not list render cache {}: {}", directory, e.getMessage());
+            return;
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        
+        entries.sort(Comparator.comparing(RenderCache::lastModified));
+        int evicted = 0;
+        for (Path entry : entries) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            try {
+                long size = Files.size(entry);
+                Files.delete(entry);
+                totalBytes -= size;
+                evicted++;
+            } catch (IOException e) {
+                logger.warn("Could not evict render cache entry {}: {}", entry, e.getMessage());
+            }
+        }
+        logger.info("Evicted {} render cache entries, {} KB remain", evicted, totalBytes / 1024);
+    }
+    
+    private static FileTime lastModified(Path entry) {
+        try {
+            return Files.getLastModifiedTime(entry);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+    
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", file, e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,275 @@
+package com.epubtopdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapses byte-identical images so each distinct image is decoded and written once.
+ * Curriculum EPUBs reuse the same icons and headers across many files and chapters.
+ * Fonts embedded identically by separately rendered segments are collapsed the same way.
+ */
+public class ResourceDeduplicator {
+    private static final Logger logger = LoggerFactory.getLogger(ResourceDeduplicator.class);
+    
+    private ResourceDeduplicator() {
+    }
+    
+    /**
+     * Maps every image href to the first href in the store with the same content. Rendering all
+     * copies through the canonical href lets openhtmltopdf reuse one image XObject per document.
+     */
+    public static Map<String, String> canonicalImageHrefs(Map<String, byte[]> images) {
+        Map<String, String> canonicalByHash = new HashMap<>();
+        Map<String, String> canonicalHrefs = new LinkedHashMap<>();
+        
+        for (Map.Entry<String, byte[]> image : images.entrySet()) {
+            if (image.getValue() == null) {
+                continue;
+            }
+            String hash = sha256(image.getValue());
+            canonicalHrefs.put(image.getKey(), canonicalByHash.computeIfAbsent(hash, h -> image.getKey()));
+        }
+        
+        long duplicates = canonicalHrefs.size() - canonicalByHash.size();
+        logger.info("Found {} distinct images among {} manifest images", canonicalByHash.size(), canonicalHrefs.size());
+        if (duplicates > 0) {
+            logger.info("Rendering {} duplicate images through their canonical copy", duplicates);
+        }
+        return canonicalHrefs;
+    }
+    
+    /**
+     * Replaces image XObjects that are identical in content and parameters with a single shared
+     * stream. Pages merged from separately rendered segments each carry their own copy of every
+     * image they use; after this pass every copy is referenced from one object, and the
+     * unreferenced duplicates are dropped when the document is saved.
+     * @return the number of XObject references that were redirected to a shared stream
+     */
+    public static int deduplicateImages(PDDocument document) throws IOException {
+        Map<String, COSStream> canonicalStreams = new HashMap<>();
+        Map<COSStream, String> fingerprints = new IdentityHashMap<>();
+        Set<COSDictionary> visitedResources = Collections.newSetFromMap(new IdentityHashMap<>());
+        
+        int redirected = 0;
+        for (PDPage page : document.getPages()) {
+            COSBase resources = page.getCOSObject().getDictionaryObject(COSName.RESOURCES);
+            if (resources instanceof COSDictionary) {
+                redirected += deduplicateXObjects((COSDictionary) resources, canonicalStreams, fingerprints, visitedResources);
+            }
+        }
+        
+        logger.info("Shared {} image XObject references across {} distinct images", redirected, canonicalStreams.size());
+        return redirected;
+    }
+    
+    private static int deduplicateXObjects(COSDictionary resources, Map<String, COSStream> canonicalStreams,
+                                           Map<COSStream, String> fingerprints, Set<COSDictionary> visitedResources) throws IOException {
+        if (!visitedResources.add(resources)) {
+            return 0;
+        }
+        
+        COSBase xObjects = resources.getDictionaryObject(COSName.XOBJECT);
+        if (!(xObjects instanceof COSDictionary)) {
+            return 0;
+        }
+        
+        int redirected = 0;
+        COSDictionary xObjectDictionary = (COSDictionary) xObjects;
+        for (COSName name : new ArrayList<>(xObjectDictionary.keySet())) {
+            COSBase value = xObjectDictionary.getDictionaryObject(name);
+            if (!(value instanceof COSStream)) {
+                continue;
+            }
+            
+            COSStream stream = (COSStream) value;
+            if (COSName.IMAGE.equals(stream.getCOSName(COSName.SUBTYPE))) {
+                String fingerprint = fingerprints.get(stream);
+                if (fingerprint == null) {
+                    fingerprint = fingerprint(stream);
+                    fingerprints.put(stream, fingerprint);
+                }
+                
+                COSStream canonical = canonicalStreams.putIfAbsent(fingerprint, stream);
+                if (canonical != null && canonical != stream) {
+                    xObjectDictionary.setItem(name, canonical);
+                    redirected++;
+                }
+            } else if (COSName.FORM.equals(stream.getCOSName(COSName.SUBTYPE))) {
+                COSBase formResources = stream.getDictionaryObject(COSName.RESOURCES);
+                if (formResources instanceof COSDictionary) {
+                    redirected += deduplicateXObjects((COSDictionary) formResources, canonicalStreams, fingerprints, visitedResources);
+                }
+            }
+        }
+        return redirected;
+    }
+    
+    /**
+     * Replaces font dictionaries that are identical, including their embedded font program,
+     * with a single shared dictionary. Segments laid out with fonts subset for the whole book
+     * embed the same font objects, so the merged PDF keeps one copy of each font.
+     * @return the number of font references that were redirected to a shared dictionary
+     */
+    public static int deduplicateFonts(PDDocument document) throws IOException {
+        Map<String, COSDictionary> canonicalFonts = new HashMap<>();
+        Map<COSDictionary, String> fingerprints = new IdentityHashMap<>();
+        Set<COSDictionary> visitedResources = Collections.newSetFromMap(new IdentityHashMap<>());
+        
+        int redirected = 0;
+        for (PDPage page : document.getPages()) {
+            COSBase resources = page.getCOSObject().getDictionaryObject(COSName.RESOURCES);
+            if (resources instanceof COSDictionary) {
+                redirected += deduplicateFonts((COSDictionary) resources, canonicalFonts, fingerprints, visitedResources);
+            }
+        }
+        
+        logger.info("Shared {} font references across {} distinct fonts", redirected, canonicalFonts.size());
+        return redirected;
+    }
+    
+    private static int deduplicateFonts(COSDictionary resources, Map<String, COSDictionary> canonicalFonts,
+                                        Map<COSDictionary, String> fingerprints, Set<COSDictionary> visitedResources) throws IOException {
+        if (!visitedResources.add(resources)) {
+            return 0;
+        }
+        
+        int redirected = 0;
+        COSBase fonts = resources.getDictionaryObject(COSName.FONT);
+        if (fonts instanceof COSDictionary) {
+            COSDictionary fontDictionary = (COSDictionary) fonts;
+            for (COSName name : new ArrayList<>(fontDictionary.keySet())) {
+                COSBase value = fontDictionary.getDictionaryObject(name);
+                if (!(value instanceof COSDictionary)) {
+                    continue;
+                }
+                
+                COSDictionary font = (COSDictionary) value;
+                String fingerprint = fingerprints.get(font);
+                if (fingerprint == null) {
+                    fingerprint = fingerprint(font);
+                    fingerprints.put(font, fingerprint);
+                }
+                
+                COSDictionary canonical = canonicalFonts.putIfAbsent(fingerprint, font);
+                if (canonical != null && canonical != font) {
+                    fontDictionary.setItem(name, canonical);
+                    redirected++;
+                }
+            }
+        }
+        
+        // Text inside form XObjects, such as Type 3 glyphs and annotation appearances, has its own resources
+        COSBase xObjects = resources.getDictionaryObject(COSName.XOBJECT);
+        if (xObjects instanceof COSDictionary) {
+            for (COSBase value : ((COSDictionary) xObjects).getValues()) {
+                COSBase xObject = value instanceof COSObject ? ((COSObject) value).getObject() : value;
+                if (xObject instanceof COSStream && COSName.FORM.equals(((COSStream) xObject).getCOSName(COSName.SUBTYPE))) {
+                    COSBase formResources = ((COSStream) xObject).getDictionaryObject(COSName.RESOURCES);
+                    if (formResources instanceof COSDictionary) {
+                        redirected += deduplicateFonts((COSDictionary) formResources, canonicalFonts, fingerprints, visitedResources);
+                    }
+                }
+            }
+        }
+        return redirected;
+    }
+    
+    /**
+     * Hashes a stream's encoded bytes together with its dictionary, so only images with the
+     * same data, filters, color space and soft mask compare equal. Dictionaries are hashed with
+     * every object and stream they reference.
+     */
+    static String fingerprint(COSDictionary object) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, object, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+    
+    private static void update(MessageDigest digest, COSBase base, Set<COSBase> path) throws IOException {
+        if (base instanceof COSObject) {
+            base = ((COSObject) base).getObject();
+        }
+        if (base == null) {
+            digest.update((byte) 0);
+            return;
+        }
+        if (!path.add(base)) {
+            // Cyclic reference; the structure above already identifies it
+            digest.update((byte) 1);
+            return;
+        }
+        
+        if (base instanceof COSStream) {
+            updateDictionary(digest, (COSDictionary) base, path);
+            digest.update((byte) 's');
+            try (InputStream raw = ((COSStream) base).createRawInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = raw.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        } else if (base instanceof COSDictionary) {
+            updateDictionary(digest, (COSDictionary) base, path);
+        } else if (base instanceof COSArray) {
+            digest.update((byte) '[');
+            for (COSBase element : (COSArray) base) {
+                update(digest, element, path);
+            }
+            digest.update((byte) ']');
+        } else {
+            digest.update(base.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        
+        path.remove(base);
+    }
+    
+    private static void updateDictionary(MessageDigest digest, COSDictionary dictionary, Set<COSBase> path) throws IOException {
+        digest.update((byte) '{');
+        List<COSName> keys = new ArrayList<>(dictionary.keySet());
+        keys.sort(null);
+        for (COSName key : keys) {
+            if (COSName.LENGTH.equals(key)) {
+                continue;
+            }
+            digest.update(key.getName().getBytes(StandardCharsets.UTF_8));
+            update(digest, dictionary.getItem(key), path);
+        }
+        digest.update((byte) '}');
+    }
+    
+    private static String sha256(byte[] data) {
+        return new BigInteger(1, newDigest().digest(data)).toString(16);
+    }
+    
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,158 @@
+package com.epubtopdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Sidecar written next to a segmented PDF that records, for every segment, the hash of its
+ * render inputs and the pages it occupies. A later conversion compares hashes against it to
+ * reuse the pages of unchanged segments instead of laying them out again. The manifest also
+ * records a SHA-256 of the PDF it was written for, so that it is not trusted once the PDF has
+ * been replaced by another conversion.
+ */
+public class SegmentManifest {
+    private static final String SUFFIX = ".segments";
+    private static final String FORMAT_VERSION = "2";
+    
+    private final Map<String, int[]> pagesByKey = new HashMap<>();
+    private final Properties properties = new Properties();
+    private int segmentCount;
+    private int pageCount;
+    private String pdfDigest;
+    
+    /**
+     * Returns the path of the manifest belonging to a PDF
+     */
+    public static Path pathFor(String pdfPath) {
+        return Paths.get(pdfPath + SUFFIX);
+    }
+    
+    /**
+     * Loads the manifest of a PDF
+     * @return the manifest, or null if the PDF has none or it was written by an incompatible version
+     */
+    public static SegmentManifest load(String pdfPath) throws IOException {
+        Path path = pathFor(pdfPath);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(path)) {
+            properties.load(is);
+        }
+        if (!FORMAT_VERSION.equals(properties.getProperty("format"))) {
+            return null;
+        }
+        
+        SegmentManifest manifest = new SegmentManifest();
+        try {
+            int segments = Integer.parseInt(properties.getProperty("segments", "0"));
+            for (int i = 0; i < segments; i++) {
+                String key = properties.getProperty("segment." + i + ".key");
+                String start = properties.getProperty("segment." + i + ".start");
+                String pages = properties.getProperty("segment." + i + ".pages");
+                if (key != null && start != null && pages != null) {
+                    manifest.addSegment(key, Integer.parseInt(start), Integer.parseInt(pages));
+                }
+            }
+            manifest.pageCount = Integer.parseInt(properties.getProperty("pages", "-1"));
+            manifest.pdfDigest = properties.getProperty("pdf.sha256");
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return manifest;
+    }
+    
+    /**
+     * Records the next segment
+     * @param key hash of the segment's render inputs, or null if its pages must not be reused
+     * @param start index of the segment's first page
+     * @param pages number of pages the segment occupies
+     */
+    public void addSegment(String key, int start, int pages) {
+        int index = segmentCount++;
+        if (key != null) {
+            properties.setProperty("segment." + index + ".key", key);
+            properties.setProperty("segment." + index + ".start", Integer.toString(start));
+            properties.setProperty("segment." + index + ".pages", Integer.toString(pages));
+            pagesByKey.putIfAbsent(key, new int[] { start, pages });
+        }
+        pageCount = Math.max(pageCount, start + pages);
+    }
+    
+    /**
+     * Returns the first page index and page count of the segment with the given key, or null
+     */
+    public int[] findPages(String key) {
+        return pagesByKey.get(key);
+    }
+    
+    /**
+     * Total number of pages of the PDF the manifest describes
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+    
+    /**
+     * Returns whether the given PDF is the one the manifest was written for
+     */
+    public boolean describes(String pdfPath) throws IOException {
+        return pdfDigest != null && pdfDigest.equals(digestOf(Paths.get(pdfPath)));
+    }
+    
+    /**
+     * Deletes the manifest of a PDF, if it has one
+     */
+    public static void delete(String pdfPath) throws IOException {
+        Files.deleteIfExists(pathFor(pdfPath));
+    }
+    
+    /**
+     * Writes the manifest next to the given PDF, replacing any previous one
+     */
+    public void store(String pdfPath) throws IOException {
+        pdfDigest = digestOf(Paths.get(pdfPath));
+        properties.setProperty("format", FORMAT_VERSION);
+        properties.setProperty("pdf.sha256", pdfDigest);
+        properties.setProperty("segments", Integer.toString(segmentCount));
+        properties.setProperty("pages", Integer.toString(pageCount));
+        
+        Path path = pathFor(pdfPath).toAbsolutePath();
+        Path tempFile = Files.createFile(path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp"));
+        try {
+            try (OutputStream os = Files.newOutputStream(tempFile)) {
+                properties.store(os, "Segment hashes and page ranges of " + Paths.get(pdfPath).getFileName());
+            }
+            try {
+                Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+    
+    private static String digestOf(Path file) throws IOException {
+        MessageDigest digest = ResourceDeduplicator.newDigest();
+        try (InputStream is = new DigestInputStream(Files.newInputStream(file), digest)) {
+            is.transferTo(OutputStream.nullOutputStream());
+        }
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+}
\ No newline at end of file
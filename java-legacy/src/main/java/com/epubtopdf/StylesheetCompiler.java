@@ -0,0 +1,193 @@
+package com.epubtopdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a book's stylesheets into one compact sheet. The EPUB CSS files are largely copies
+ * of each other, so identical rules are emitted once and @import chains are inlined.
+ * Compiled sheets are cached per set of stylesheets, so segments sharing styles compile once.
+ */
+public class StylesheetCompiler {
+    private static final Logger logger = LoggerFactory.getLogger(StylesheetCompiler.class);
+    
+    private static final Pattern IMPORT_PATTERN = Pattern.compile(
+        "@import\\s*(?:url\\(\\s*)?([\"']?)([^\"')\\s]+)\\1\\s*\\)?\\s*([^;]*);?", Pattern.CASE_INSENSITIVE);
+    
+    private final Map<String, String> cssFiles;
+    private final Map<List<String>, String> compiledSheets = new ConcurrentHashMap<>();
+    
+    /**
+     * @param cssFiles stylesheet contents keyed by manifest href
+     */
+    public StylesheetCompiler(Map<String, String> cssFiles) {
+        this.cssFiles = cssFiles;
+    }
+    
+    /**
+     * Returns the compiled CSS for the given stylesheets, applied in the given order
+     */
+    public String compile(Collection<String> hrefs) {
+        return compiledSheets.computeIfAbsent(new ArrayList<>(hrefs), this::compileSheets);
+    }
+    
+    private String compileSheets(List<String> hrefs) {
+        List<String> statements = new ArrayList<>();
+        for (String href : hrefs) {
+            expand(href, statements, new HashSet<>());
+        }
+        
+        // A later copy of a rule overrides everything an earlier copy sets, so only the last one is kept
+        Set<String> seen = new HashSet<>();
+        Deque<String> kept = new ArrayDeque<>();
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            if (seen.add(statements.get(i))) {
+                kept.addFirst(statements.get(i));
+            }
+        }
+        
+        String css = String.join("\n", kept);
+        logger.info("Compiled {} stylesheets into {} rules ({} duplicates removed, {} chars)",
+            hrefs.size(), kept.size(), statements.size() - kept.size(), css.length());
+        return css;
+    }
+    
+    /**
+     * Appends the statements of a stylesheet, inlining its imports at the place they appear
+     * @param importing stylesheets on the current import chain, used to break cycles
+     */
+    private void expand(String href, List<String> statements, Set<String> importing) {
+        String css = cssFiles.get(href);
+        if (css == null) {
+            logger.warn("Stylesheet not found in EPUB: {}", href);
+            return;
+        }
+        if (!importing.add(href)) {
+            logger.warn("Skipping circular @import of {}", href);
+            return;
+        }
+        
+        for (String statement : splitStatements(css)) {
+            // Embedded fonts are registered with the renderer by FontRegistry, which resolves
+            // their URLs against this stylesheet; inlined, the URLs would resolve nowhere
+            if (startsWithIgnoreCase(statement, "@charset") || startsWithIgnoreCase(statement, "@font-face")) {
+                continue;
+            }
+            if (!startsWithIgnoreCase(statement, "@import")) {
+                statements.add(statement);
+                continue;
+            }
+            
+            Matcher matcher = IMPORT_PATTERN.matcher(statement);
+            String target = matcher.matches() ? EpubArchive.resolveHref(href, matcher.group(2)) : null;
+            if (target == null) {
+                logger.warn("Dropping unsupported import in {}: {}", href, statement);
+                continue;
+            }
+            
+            String media = matcher.group(3).trim();
+            if (media.isEmpty()) {
+                expand(target, statements, importing);
+            } else {
+                List<String> imported = new ArrayList<>();
+                expand(target, imported, importing);
+                if (!imported.isEmpty()) {
+                    statements.add("@media " + media + "{" + String.join("", imported) + "}");
+                }
+            }
+        }
+        
+        importing.remove(href);
+    }
+    
+    /**
+     * Splits CSS into top-level statements (rules, at-rule blocks and at-rule statements).
+     * Comments are dropped and whitespace outside strings is collapsed, so rules that only
+     * differ in formatting compare equal.
+     */
+    static List<String> splitStatements(String css) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int depth = 0;
+        int length = css.length();
+        
+        for (int i = 0; i < length; i++) {
+            char c = css.charAt(i);
+            
+            if (c == '/' && i + 1 < length && css.charAt(i + 1) == '*') {
+                int end = css.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 1;
+                appendSpace(current);
+            } else if (c == '"' || c == '\'') {
+                int start = i;
+                for (i++; i < length && css.charAt(i) != c && css.charAt(i) != '\n'; i++) {
+                    if (css.charAt(i) == '\\') {
+                        i++;
+                    }
+                }
+                current.append(css, start, Math.min(i + 1, length));
+            } else if (Character.isWhitespace(c)) {
+                appendSpace(current);
+            } else if (c == '{' || c == '}' || c == ';') {
+                trimTrailingSpace(current);
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    if (depth == 0) {
+                        // Stray closing brace, ignored like a CSS parser would
+                        continue;
+                    }
+                    depth--;
+                }
+                current.append(c);
+                
+                if (depth == 0 && c != '{') {
+                    addStatement(statements, current);
+                }
+            } else {
+                current.append(c);
+            }
+        }
+        
+        addStatement(statements, current);
+        return statements;
+    }
+    
+    private static void appendSpace(StringBuilder current) {
+        int last = current.length() - 1;
+        if (last >= 0 && " {};".indexOf(current.charAt(last)) == -1) {
+            current.append(' ');
+        }
+    }
+    
+    private static void trimTrailingSpace(StringBuilder current) {
+        int last = current.length() - 1;
+        if (last >= 0 && current.charAt(last) == ' ') {
+            current.setLength(last);
+        }
+    }
+    
+    private static void addStatement(List<String> statements, StringBuilder current) {
+        String statement = current.toString().trim();
+        if (!statement.isEmpty() && !statement.equals(";")) {
+            statements.add(statement);
+        }
+        current.setLength(0);
+    }
+    
+    private static boolean startsWithIgnoreCase(String text, String prefix) {
+        return text.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.epubtopdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Structured trace of a single conversion, written as one JSON object per line. Tracing is
+ * switched on per book; every other conversion shares {@link #DISABLED}, and call sites check
+ * {@link #isEnabled()} before building an event so a disabled trace costs one field read.
+ * <p>
+ * Each line holds the milliseconds since the trace was opened, the thread, the event name and
+ * the event's fields, for example
+ * {@code {"ms":412,"thread":"main","event":"image","href":"images/cover.jpg","bytes":48211}}.
+ */
+public class Trace implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(Trace.class);
+    
+    private static final String SUFFIX = ".trace.jsonl";
+    
+    /** Trace of every conversion that is not traced */
+    public static final Trace DISABLED = new Trace(null, null);
+    
+    private final Path file;
+    private final OutputStream out;
+    private final long start = System.nanoTime();
+    private boolean failed;
+    
+    private Trace(Path file, OutputStream out) {
+        this.file = file;
+        this.out = out;
+    }
+    
+    /**
+     * Returns the path of the trace belonging to a PDF
+     */
+    public static Path pathFor(String pdfPath) {
+        return Paths.get(pdfPath + SUFFIX);
+    }
+    
+    /**
+     * Opens a trace file, replacing any earlier one
+     * @param async whether lines are written on a background thread instead of the tracing one
+     */
+    public static Trace open(Path file, boolean async) throws IOException {
+        OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+        OutputStream out = async ? new AsyncLogSink(fileOut, true, "trace-writer") : fileOut;
+        logger.info("Tracing conversion to {}", file);
+        return new Trace(file, out);
+    }
+    
+    public boolean isEnabled() {
+        return out != null;
+    }
+    
+    /** File the trace is written to, or null if tracing is off */
+    public Path getFile() {
+        return file;
+    }
+    
+    public void event(String name) {
+        if (out != null) {
+            write(name, null);
+        }
+    }
+    
+    public void event(String name, String key, Object value) {
+        if (out != null) {
+            StringBuilder fields = new StringBuilder();
+            appendField(fields, key, value);
+            write(name, fields);
+        }
+    }
+    
+    public void event(String name, String key1, Object value1, String key2, Object value2) {
+        if (out != null) {
+            StringBuilder fields = new StringBuilder();
+            appendField(fields, key1, value1);
+            appendField(fields, key2, value2);
+            write(name, fields);
+        }
+    }
+    
+    public void event(String name, String key1, Object value1, String key2, Object value2, String key3, Object value3) {
+        if (out != null) {
+            StringBuilder fields = new StringBuilder();
+            appendField(fields, key1, value1);
+            appendField(fields, key2, value2);
+            appendField(fields, key3, value3);
+            write(name, fields);
+        }
+    }
+    
+    private static void appendField(StringBuilder fields, String key, Object value) {
+        fields.append(',').append(Json.quote(key)).append(':');
+        if (value instanceof Number || value instanceof Boolean) {
+            fields.append(value);
+        } else {
+            fields.append(Json.quote(value != null ? value.toString() : null));
+        }
+    }
+    
+    private void write(String name, CharSequence fields) {
+        StringBuilder line = new StringBuilder(64);
+        line.append("{\"ms\":").append((System.nanoTime() - start) / 1_000_000);
+        line.append(",\"thread\":").append(Json.quote(Thread.currentThread().getName()));
+        line.append(",\"event\":").append(Json.quote(name));
+        if (fields != null) {
+            line.append(fields);
+        }
+        line.append("}\n");
+        
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                // A broken trace must not fail the conversion it describes
+                failed = true;
+                logger.warn("Could not write trace {}: {}", file, e.getMessage());
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            synchronized (this) {
+                out.close();
+            }
+        }
+    }
+}
\ No newline at end of file
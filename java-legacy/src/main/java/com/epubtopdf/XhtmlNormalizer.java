@@ -0,0 +1,84 @@
+package com.epubtopdf;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Entities;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns chapter markup into well-formed XHTML body content with a single parse. The HTML tree
+ * builder closes void elements, decodes entities and repairs table structure, one walk over the
+ * tree applies the registered element rules, and XML serialization writes self-closing void
+ * tags and XHTML-safe entities.
+ */
+public class XhtmlNormalizer {
+    
+    /**
+     * Rewrites an element in place during the normalization walk
+     */
+    public interface ElementRule {
+        /**
+         * @param element the element to rewrite; its children have not been visited yet
+         * @param documentHref manifest href of the document being normalized, or null if unknown
+         */
+        void apply(Element element, String documentHref);
+    }
+    
+    private final Map<String, List<ElementRule>> rulesByTag = new HashMap<>();
+    
+    /**
+     * Registers a rule for every element with the given tag name
+     */
+    public XhtmlNormalizer addRule(String tagName, ElementRule rule) {
+        rulesByTag.computeIfAbsent(tagName, tag -> new ArrayList<>()).add(rule);
+        return this;
+    }
+    
+    /**
+     * Normalizes a document and returns its body content serialized as XHTML
+     */
+    public String normalize(String html, String documentHref) {
+        return normalizeBody(html, documentHref).html();
+    }
+    
+    /**
+     * Parses and normalizes a document, returning its body element. The owning document is
+     * configured for XHTML output.
+     */
+    public Element normalizeBody(String html, String documentHref) {
+        Document doc = Jsoup.parse(html);
+        doc.outputSettings()
+            .syntax(Document.OutputSettings.Syntax.xml)
+            .escapeMode(Entities.EscapeMode.xhtml)
+            .prettyPrint(false);
+        
+        Element body = doc.body();
+        if (!rulesByTag.isEmpty()) {
+            NodeTraversor.traverse(new NodeVisitor() {
+                @Override
+                public void head(Node node, int depth) {
+                    if (node instanceof Element) {
+                        Element element = (Element) node;
+                        for (ElementRule rule : rulesByTag.getOrDefault(element.normalName(), Collections.emptyList())) {
+                            rule.apply(element, documentHref);
+                        }
+                    }
+                }
+                
+                @Override
+                public void tail(Node node, int depth) {
+                }
+            }, body);
+        }
+        return body;
+    }
+}
\ No newline at end of file